@@ -0,0 +1,387 @@
+package gov.nih.ncats.knime.lychi;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Performance regression harness for the resolution path of the Lychi Resolver
+ * node. It runs the {@link LychiResolverEngine} used by the node's workers over
+ * versioned golden corpora, checks that every structure still resolves to the
+ * expected LyChI key, and records throughput, p50/p99 latency per structure and
+ * peak heap in a properties report. If a baseline report is given, the run fails
+ * on any key mismatch, on a corpus version that differs from the baseline's,
+ * and on slowdowns beyond the threshold.
+ * <p>
+ * The corpora are small, so a single pass is dominated by noise: the p99 of a
+ * pass is about its second slowest structure. Throughput and latencies are
+ * therefore measured per pass and the median over all passes is reported and
+ * compared, together with the relative spread of the passes. A slowdown only
+ * counts if it exceeds both the threshold and three times the spread measured
+ * in the baseline or the current run. A corpus is never changed in place: a
+ * changed corpus gets a new file with the next version.
+ * <p>
+ * A golden corpus is a tab separated file with the structure, the expected key
+ * and a name per line. Lines starting with '#' hold metadata such as
+ * <code># version=1</code>, <code># remove_salt_solvent=true</code> and
+ * <code># keto_enol=false</code>. An expected key with fewer than four layers
+ * is resolved at the corresponding resolution depth, so that coarse keys can
+ * be checked in the same corpus, e.g. for pairs of tautomers.
+ * <p>
+ * Usage:
+ * <code>LychiResolverRegressionHarness [-report file] [-baseline file]
+ * [-threshold 0.2] [-warmup 2] [-repeat 15] corpus...</code>. The exit code is 0
+ * if all checks passed, 1 on a regression and 2 on invalid arguments.
+ * <p>
+ * The harness is not part of the plugin. It only needs the LyChI library and
+ * the engine classes, which do not depend on KNIME, so it can be built and run
+ * from the plugin directory with
+ * <pre>
+ * javac -cp libs/lychi-all.jar -d bin-benchmark \
+ *     src/gov/nih/ncats/knime/lychi/LychiResolver{Engine,Cache,Statistics,Exception}.java \
+ *     benchmark/src/gov/nih/ncats/knime/lychi/LychiResolverRegressionHarness.java
+ * java -cp bin-benchmark:libs/lychi-all.jar gov.nih.ncats.knime.lychi.LychiResolverRegressionHarness \
+ *     -baseline benchmark/golden/baseline.properties benchmark/golden/*.tsv
+ * </pre>
+ * The node workers, partitions, sorted output and error port need a KNIME
+ * execution context and are not covered.
+ *
+ * @author Vishal Siramshetty (siramshettyv2@nih.gov)
+ */
+public class LychiResolverRegressionHarness {
+
+	/** Suffix of the relative spread of a measurement over the passes. */
+	private static final String NOISE_SUFFIX = ".noise";
+
+	/** Multiple of the spread a measurement may deviate from the baseline. */
+	private static final double NOISE_FACTOR = 3;
+
+	private final double threshold;
+	private final int warmup;
+	private final int repeat;
+
+	private final Properties report = new Properties();
+	private final List<String> failures = new ArrayList<String>();
+
+	/**
+	 * @param threshold relative slowdown tolerated against the baseline
+	 * @param warmup    unmeasured passes over each corpus
+	 * @param repeat    measured passes over each corpus, the medians of the
+	 *                  passes are compared
+	 */
+	public LychiResolverRegressionHarness(final double threshold, final int warmup, final int repeat) {
+		this.threshold = threshold;
+		this.warmup = warmup;
+		this.repeat = repeat;
+	}
+
+	/**
+	 * One structure of a golden corpus.
+	 */
+	private static final class Entry {
+		private final String structure;
+		private final String expected;
+		private final String name;
+		private final int depth;
+
+		private Entry(final String structure, final String expected, final String name) {
+			this.structure = structure;
+			this.expected = expected;
+			this.name = name;
+			this.depth = expected.split("-").length;
+		}
+	}
+
+	/**
+	 * Resolves all structures of the corpus, checks the keys and adds the
+	 * measurements to the report.
+	 *
+	 * @param corpus
+	 * @throws IOException
+	 */
+	public void run(final File corpus) throws IOException {
+
+		Properties meta = new Properties();
+		List<Entry> entries = new ArrayList<Entry>();
+		for (String line : Files.readAllLines(corpus.toPath(), StandardCharsets.UTF_8)) {
+			if (line.startsWith("#")) {
+				int eq = line.indexOf('=');
+				if (eq > 0) {
+					meta.setProperty(line.substring(1, eq).trim(), line.substring(eq + 1).trim());
+				}
+			} else if (!line.trim().isEmpty()) {
+				String[] fields = line.split("\t");
+				entries.add(new Entry(fields[0], fields[1], fields.length > 2 ? fields[2] : fields[0]));
+			}
+		}
+
+		boolean removeSaltSolvent = Boolean.parseBoolean(meta.getProperty("remove_salt_solvent", "true"));
+		boolean ketoEnol = Boolean.parseBoolean(meta.getProperty("keto_enol", "false"));
+		String prefix = corpus.getName().replaceFirst("\\.[^.]*$", "") + ".";
+
+		// one engine per resolution depth, without caching, so every structure is
+		// standardized on every pass
+		LychiResolverEngine[] engines = new LychiResolverEngine[LychiResolverEngine.MAX_DEPTH + 1];
+		for (Entry entry : entries) {
+			if (entry.depth > LychiResolverEngine.MAX_DEPTH) {
+				throw new IOException("Expected key of " + entry.name + " has more than "
+						+ LychiResolverEngine.MAX_DEPTH + " layers: " + entry.expected);
+			}
+			if (engines[entry.depth] == null) {
+				engines[entry.depth] = new LychiResolverEngine(removeSaltSolvent, ketoEnol, entry.depth,
+						new LychiResolverCache(0,
+								LychiResolverEngine.getOptions(removeSaltSolvent, ketoEnol, entry.depth)),
+						new LychiResolverStatistics());
+			}
+		}
+
+		for (int pass = 0; pass < warmup; pass++) {
+			resolveAll(engines, entries, null, false);
+		}
+
+		resetPeakHeap();
+		long[] latencies = new long[entries.size()];
+		double[] throughputs = new double[repeat];
+		double[] p50s = new double[repeat];
+		double[] p99s = new double[repeat];
+		int mismatches = 0;
+		for (int pass = 0; pass < repeat; pass++) {
+			long start = System.nanoTime();
+			// every pass must reproduce the keys, report the worst pass
+			mismatches = Math.max(mismatches, resolveAll(engines, entries, latencies, pass == 0));
+			long elapsed = System.nanoTime() - start;
+			Arrays.sort(latencies);
+			throughputs[pass] = latencies.length / Math.max(elapsed / 1e9, 1e-9);
+			p50s[pass] = percentile(latencies, 0.50) / 1e6;
+			p99s[pass] = percentile(latencies, 0.99) / 1e6;
+		}
+
+		report.setProperty(prefix + "version", meta.getProperty("version", "unknown"));
+		report.setProperty(prefix + "rows", String.valueOf(entries.size()));
+		report.setProperty(prefix + "passes", String.valueOf(repeat));
+		report.setProperty(prefix + "mismatches", String.valueOf(mismatches));
+		setMeasurement(prefix + "throughput_rows_per_s", throughputs, "%.1f");
+		setMeasurement(prefix + "p50_ms", p50s, "%.3f");
+		setMeasurement(prefix + "p99_ms", p99s, "%.3f");
+		report.setProperty(prefix + "peak_heap_mb", String.format(Locale.ROOT, "%.1f", getPeakHeap() / 1048576.0));
+
+		if (mismatches > 0) {
+			failures.add(corpus.getName() + ": " + mismatches + " key mismatches");
+		}
+	}
+
+	/**
+	 * Reports the median of the passes and their spread, the median absolute
+	 * deviation relative to the median.
+	 */
+	private void setMeasurement(final String key, final double[] passes, final String format) {
+		double median = median(passes);
+		double[] deviations = new double[passes.length];
+		for (int i = 0; i < passes.length; i++) {
+			deviations[i] = Math.abs(passes[i] - median);
+		}
+		report.setProperty(key, String.format(Locale.ROOT, format, median));
+		report.setProperty(key + NOISE_SUFFIX,
+				String.format(Locale.ROOT, "%.3f", median == 0 ? 0 : median(deviations) / median));
+	}
+
+	private static double median(final double[] values) {
+		double[] sorted = values.clone();
+		Arrays.sort(sorted);
+		int n = sorted.length;
+		return n == 0 ? 0 : n % 2 == 1 ? sorted[n / 2] : (sorted[n / 2 - 1] + sorted[n / 2]) / 2;
+	}
+
+	/**
+	 * Resolves all entries once, storing the latencies unless latencies is null.
+	 *
+	 * @return number of keys that differ from the expected ones
+	 */
+	private int resolveAll(final LychiResolverEngine[] engines, final List<Entry> entries, final long[] latencies,
+			final boolean printMismatches) {
+		int mismatches = 0;
+		for (int i = 0; i < entries.size(); i++) {
+			Entry entry = entries.get(i);
+			long start = System.nanoTime();
+			String key;
+			try {
+				key = engines[entry.depth].resolve(entry.structure);
+			} catch (LychiResolverException ex) {
+				key = "failed: " + ex.getCode().getLabel();
+			}
+			long nanos = System.nanoTime() - start;
+			if (latencies != null) {
+				latencies[i] = nanos;
+			}
+			if (!entry.expected.equals(key)) {
+				mismatches++;
+				if (printMismatches) {
+					System.err.println("Mismatch for " + entry.name + ": expected " + entry.expected + ", got " + key);
+				}
+			}
+		}
+		return mismatches;
+	}
+
+	private static long percentile(final long[] sorted, final double p) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int index = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+
+	private static void resetPeakHeap() {
+		System.gc();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	private static long getPeakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+
+	/**
+	 * Compares the measurements against a baseline report. A corpus must have the
+	 * version it had in the baseline. Throughput may drop and p99 latency and
+	 * peak heap may grow by the threshold or by three times the spread of the
+	 * passes, whichever is larger.
+	 *
+	 * @param baseline
+	 */
+	public void compare(final Properties baseline) {
+		for (String key : report.stringPropertyNames()) {
+			String base = baseline.getProperty(key);
+			if (base == null) {
+				continue;
+			}
+			if (key.endsWith(".version")) {
+				if (!base.equals(report.getProperty(key))) {
+					failures.add(key + " is " + report.getProperty(key) + " but the baseline was measured on " + base
+							+ ", regenerate the baseline for the new corpus");
+				}
+				continue;
+			}
+			boolean higherIsBetter = key.endsWith(".throughput_rows_per_s");
+			boolean lowerIsBetter = key.endsWith(".p99_ms") || key.endsWith(".peak_heap_mb");
+			if (!(higherIsBetter || lowerIsBetter)) {
+				continue;
+			}
+			double current = Double.parseDouble(report.getProperty(key));
+			double expected = Double.parseDouble(base);
+			double noise = Math.max(Double.parseDouble(baseline.getProperty(key + NOISE_SUFFIX, "0")),
+					Double.parseDouble(report.getProperty(key + NOISE_SUFFIX, "0")));
+			double tolerance = Math.max(threshold, NOISE_FACTOR * noise);
+			if (higherIsBetter && current < expected * (1 - tolerance)) {
+				failures.add(key + " dropped from " + base + " to " + report.getProperty(key));
+			} else if (lowerIsBetter && current > expected * (1 + tolerance)) {
+				failures.add(key + " grew from " + base + " to " + report.getProperty(key));
+			}
+		}
+	}
+
+	/**
+	 * @return the measurements of all corpora
+	 */
+	public Properties getReport() {
+		return report;
+	}
+
+	/**
+	 * @return the correctness and performance regressions found so far
+	 */
+	public List<String> getFailures() {
+		return failures;
+	}
+
+	/**
+	 * Runs the harness from the command line.
+	 *
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(final String[] args) throws IOException {
+
+		File reportFile = null;
+		File baselineFile = null;
+		double threshold = 0.2;
+		int warmup = 2;
+		int repeat = 15;
+		List<File> corpora = new ArrayList<File>();
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if ("-report".equals(args[i])) {
+					reportFile = new File(args[++i]);
+				} else if ("-baseline".equals(args[i])) {
+					baselineFile = new File(args[++i]);
+				} else if ("-threshold".equals(args[i])) {
+					threshold = Double.parseDouble(args[++i]);
+				} else if ("-warmup".equals(args[i])) {
+					warmup = Integer.parseInt(args[++i]);
+				} else if ("-repeat".equals(args[i])) {
+					repeat = Integer.parseInt(args[++i]);
+				} else {
+					corpora.add(new File(args[i]));
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException | NumberFormatException ex) {
+			corpora.clear();
+		}
+		if (corpora.isEmpty()) {
+			System.err.println("Usage: LychiResolverRegressionHarness [-report file] [-baseline file]"
+					+ " [-threshold 0.2] [-warmup 2] [-repeat 15] corpus...");
+			System.exit(2);
+		}
+
+		LychiResolverRegressionHarness harness = new LychiResolverRegressionHarness(threshold, warmup,
+				Math.max(1, repeat));
+		for (File corpus : corpora) {
+			harness.run(corpus);
+		}
+
+		if (baselineFile != null) {
+			Properties baseline = new Properties();
+			try (InputStream in = new FileInputStream(baselineFile)) {
+				baseline.load(in);
+			}
+			harness.compare(baseline);
+		}
+
+		if (reportFile != null) {
+			try (OutputStream out = new FileOutputStream(reportFile)) {
+				harness.getReport().store(out, "LyChI resolver regression report");
+			}
+		} else {
+			harness.getReport().store(System.out, "LyChI resolver regression report");
+		}
+
+		for (String failure : harness.getFailures()) {
+			System.err.println("REGRESSION: " + failure);
+		}
+		System.exit(harness.getFailures().isEmpty() ? 0 : 1);
+	}
+
+}
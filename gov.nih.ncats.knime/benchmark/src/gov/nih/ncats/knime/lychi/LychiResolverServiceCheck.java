@@ -0,0 +1,261 @@
+package gov.nih.ncats.knime.lychi;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Checks the {@link LychiResolverService} on localhost. Like the node, it
+ * resolves a golden corpus with an engine and then starts the service on that
+ * engine on a free loopback port. It resolves the corpus again through the
+ * service and checks that the keys are streamed back in input order from the
+ * shared cache, and checks error lines, metrics, pipelined requests and the
+ * answers to invalid requests. The node itself needs a KNIME execution context
+ * and is not covered. The exit code is 0 if all checks passed and 1
+ * otherwise.
+ * <p>
+ * Usage: <code>LychiResolverServiceCheck [corpus]</code>, by default
+ * <code>benchmark/golden/lychi-golden-v2.tsv</code>. It is built and run like
+ * the {@link LychiResolverRegressionHarness}, with
+ * <code>LychiResolverService.java</code> added to the sources.
+ *
+ * @author Vishal Siramshetty (siramshettyv2@nih.gov)
+ */
+public class LychiResolverServiceCheck {
+
+	private static final String INVALID_SMILES = "C1CC(";
+
+	private final int port;
+	private final List<String> failures = new ArrayList<String>();
+
+	private LychiResolverServiceCheck(final int port) {
+		this.port = port;
+	}
+
+	/**
+	 * Response of the service, with a chunked body already decoded.
+	 */
+	private static final class Response {
+
+		private final int status;
+		private final Map<String, String> headers;
+		private final String body;
+
+		private Response(final int status, final Map<String, String> headers, final String body) {
+			this.status = status;
+			this.headers = headers;
+			this.body = body;
+		}
+	}
+
+	private void check(final boolean condition, final String message) {
+		if (!condition) {
+			failures.add(message);
+		}
+		System.out.println((condition ? "ok    " : "FAIL  ") + message);
+	}
+
+	private Socket connect() throws IOException {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		socket.setSoTimeout(60000);
+		return socket;
+	}
+
+	private static String post(final String path, final String body) {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		return "POST " + path + " HTTP/1.1\r\nHost: localhost\r\nContent-Type: text/plain\r\nContent-Length: "
+				+ bytes.length + "\r\n\r\n" + body;
+	}
+
+	private static String get(final String path) {
+		return "GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+	}
+
+	private static void send(final OutputStream out, final String request) throws IOException {
+		out.write(request.getBytes(StandardCharsets.UTF_8));
+		out.flush();
+	}
+
+	private Response exchange(final String request) throws IOException {
+		try (Socket socket = connect(); InputStream in = new BufferedInputStream(socket.getInputStream())) {
+			send(socket.getOutputStream(), request);
+			return readResponse(in);
+		}
+	}
+
+	private static Response readResponse(final InputStream in) throws IOException {
+		String statusLine = readLine(in);
+		if (statusLine == null) {
+			throw new IOException("Connection closed without a response");
+		}
+		int status = Integer.parseInt(statusLine.split(" ")[1]);
+		Map<String, String> headers = new HashMap<String, String>();
+		for (String line = readLine(in); line != null && !line.isEmpty(); line = readLine(in)) {
+			int colon = line.indexOf(':');
+			headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+		}
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+			for (int size = Integer.parseInt(readLine(in), 16); size > 0; size = Integer.parseInt(readLine(in), 16)) {
+				body.write(readFully(in, size));
+				readLine(in);
+			}
+			readLine(in);
+		} else if (headers.containsKey("content-length")) {
+			body.write(readFully(in, Integer.parseInt(headers.get("content-length"))));
+		}
+		return new Response(status, headers, new String(body.toByteArray(), StandardCharsets.UTF_8));
+	}
+
+	private static String readLine(final InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != -1 && b != '\n') {
+			if (b != '\r') {
+				line.write(b);
+			}
+		}
+		return b == -1 && line.size() == 0 ? null : new String(line.toByteArray(), StandardCharsets.US_ASCII);
+	}
+
+	private static byte[] readFully(final InputStream in, final int length) throws IOException {
+		byte[] bytes = new byte[length];
+		for (int read = 0; read < length;) {
+			int n = in.read(bytes, read, length - read);
+			if (n == -1) {
+				throw new IOException("Unexpected end of response");
+			}
+			read += n;
+		}
+		return bytes;
+	}
+
+	private static Map<String, String> parseMetrics(final String body) {
+		Map<String, String> metrics = new HashMap<String, String>();
+		for (String line : body.split("\n")) {
+			int eq = line.indexOf('=');
+			if (eq > 0) {
+				metrics.put(line.substring(0, eq), line.substring(eq + 1));
+			}
+		}
+		return metrics;
+	}
+
+	private void run(final List<String> structures, final List<String> keys) throws IOException {
+
+		StringBuilder batch = new StringBuilder();
+		for (String structure : structures) {
+			batch.append(structure).append('\n');
+		}
+		batch.append(INVALID_SMILES).append('\n');
+		Response resolved = exchange(post("/resolve", batch.toString()));
+		check(resolved.status == 200, "POST /resolve answers 200");
+		check("chunked".equals(resolved.headers.get("transfer-encoding")), "POST /resolve streams chunks");
+		String[] lines = resolved.body.split("\n", -1);
+		check(lines.length == structures.size() + 2, "one line per structure");
+		int mismatches = 0;
+		for (int i = 0; i < structures.size() && i < lines.length; i++) {
+			if (!keys.get(i).equals(lines[i])) {
+				mismatches++;
+			}
+		}
+		check(mismatches == 0, "keys are in input order and match the corpus (" + mismatches + " mismatches)");
+		check(lines.length > structures.size() && lines[structures.size()].startsWith("ERROR\t"),
+				"an invalid structure gives an ERROR line");
+
+		Response metrics = exchange(get("/metrics"));
+		Map<String, String> values = parseMetrics(metrics.body);
+		check(metrics.status == 200, "GET /metrics answers 200");
+		check(String.valueOf(structures.size() + 1).equals(values.get("structures")), "metrics count the structures");
+		check("1".equals(values.get("failures")), "metrics count the failure");
+		check(values.containsKey("latency_p99_ms"), "metrics report latency");
+		check(Long.parseLong(values.getOrDefault("cache_hits", "0")) >= structures.size(),
+				"structures resolved before are answered from the shared cache");
+
+		check(exchange(get("/unknown")).status == 404, "unknown paths answer 404");
+		check(exchange("POST /resolve HTTP/1.1\r\nContent-Length: abc\r\n\r\n").status == 400,
+				"a non-numeric Content-Length answers 400");
+		check(exchange("POST /resolve HTTP/1.1\r\nContent-Length: -5\r\n\r\n").status == 400,
+				"a negative Content-Length answers 400");
+		check(exchange("POST /resolve HTTP/1.1\r\n\r\n").status == 411, "a missing Content-Length answers 411");
+
+		// three requests written at once are answered in order on one connection
+		try (Socket socket = connect(); InputStream in = new BufferedInputStream(socket.getInputStream())) {
+			send(socket.getOutputStream(), post("/resolve", structures.get(0) + "\n") + get("/metrics")
+					+ post("/resolve", structures.get(1) + "\n"));
+			Response first = readResponse(in);
+			Response second = readResponse(in);
+			Response third = readResponse(in);
+			check(first.body.equals(keys.get(0) + "\n") && second.body.startsWith("requests=")
+					&& third.body.equals(keys.get(1) + "\n"), "pipelined requests are answered in order");
+		}
+	}
+
+	/**
+	 * @param args
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static void main(final String[] args) throws IOException, InterruptedException {
+
+		File corpus = new File(args.length > 0 ? args[0] : "benchmark/golden/lychi-golden-v2.tsv");
+		boolean removeSaltSolvent = true;
+		boolean ketoEnol = false;
+		List<String> structures = new ArrayList<String>();
+		List<String> keys = new ArrayList<String>();
+		for (String line : Files.readAllLines(corpus.toPath(), StandardCharsets.UTF_8)) {
+			if (line.startsWith("#")) {
+				String meta = line.substring(1).trim();
+				if (meta.startsWith("remove_salt_solvent=")) {
+					removeSaltSolvent = Boolean.parseBoolean(meta.substring(meta.indexOf('=') + 1));
+				} else if (meta.startsWith("keto_enol=")) {
+					ketoEnol = Boolean.parseBoolean(meta.substring(meta.indexOf('=') + 1));
+				}
+				continue;
+			}
+			String[] fields = line.split("\t");
+			// the service resolves at full depth, coarse keys are left to the harness
+			if (fields.length >= 2 && fields[1].split("-").length == LychiResolverEngine.MAX_DEPTH) {
+				structures.add(fields[0]);
+				keys.add(fields[1]);
+			}
+		}
+
+		LychiResolverEngine engine = new LychiResolverEngine(removeSaltSolvent, ketoEnol,
+				new LychiResolverCache(LychiResolverCache.DEFAULT_MAX_ENTRIES,
+						LychiResolverEngine.getOptions(removeSaltSolvent, ketoEnol, LychiResolverEngine.MAX_DEPTH)),
+				new LychiResolverStatistics());
+		// fill the cache the way the workers of an execution do
+		for (String structure : structures) {
+			try {
+				engine.resolve(structure);
+			} catch (LychiResolverException ex) {
+				// checked through the service
+			}
+		}
+		LychiResolverService service = new LychiResolverService(engine, Runtime.getRuntime().availableProcessors());
+		LychiResolverServiceCheck check = new LychiResolverServiceCheck(service.start(0));
+		try {
+			check.run(structures, keys);
+		} finally {
+			service.stop();
+		}
+
+		System.out.println(check.failures.isEmpty() ? "All checks passed" : check.failures.size() + " checks failed");
+		System.exit(check.failures.isEmpty() ? 0 : 1);
+	}
+
+}
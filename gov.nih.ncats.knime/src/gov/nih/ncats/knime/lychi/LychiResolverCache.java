@@ -0,0 +1,259 @@
+package gov.nih.ncats.knime.lychi;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded, least-recently-used cache from input structure to LyChI hash key.
+ * One instance is shared by all workers and all structure columns of a node,
+ * so that structures repeated within or across columns are only standardized
+ * once. A cache is only valid for the standardization options it was filled
+ * with, see {@link #getOptions()}.
+ * <p>
+ * Structures are not kept, entries are looked up by a 128 bit digest of the
+ * structure, so an entry has the same small size no matter how large the
+ * structure is. The entries are split into independently locked segments, so
+ * that the workers do not all contend for one lock.
+ *
+ * @author Vishal Siramshetty (siramshettyv2@nih.gov)
+ */
+public class LychiResolverCache {
+
+	/** Default number of cached structures. */
+	public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+	/** Number of segments, a power of two. */
+	private static final int SEGMENTS = 16;
+
+	/** Structures are digested in chunks of this many characters. */
+	private static final int DIGEST_CHUNK_CHARS = 4096;
+
+	private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new IllegalStateException(nsae);
+		}
+	});
+
+	private static final ThreadLocal<byte[]> DIGEST_BUFFERS = ThreadLocal
+			.withInitial(() -> new byte[2 * DIGEST_CHUNK_CHARS]);
+
+	private final Segment[] segments;
+	private final int options;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * @param maxEntries number of structures to keep before the least recently
+	 *                   used ones are evicted
+	 * @param options    the standardization options of the cached keys, see
+	 *                   {@link LychiResolverEngine#getOptions()}
+	 */
+	public LychiResolverCache(final int maxEntries, final int options) {
+		this.options = options;
+		int maxSegmentEntries = (maxEntries + SEGMENTS - 1) / SEGMENTS;
+		this.segments = new Segment[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment(maxSegmentEntries);
+		}
+	}
+
+	/**
+	 * One independently locked part of the cache, in access order.
+	 */
+	private static final class Segment extends LinkedHashMap<Digest, String> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int maxEntries;
+
+		private Segment(final int maxEntries) {
+			super(16, 0.75f, true);
+			this.maxEntries = maxEntries;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<Digest, String> eldest) {
+			return size() > maxEntries;
+		}
+	}
+
+	/**
+	 * Identifies a structure by the first 128 bits of its SHA-256 digest.
+	 */
+	public static final class Digest {
+
+		private final long high;
+		private final long low;
+
+		private Digest(final long high, final long low) {
+			this.high = high;
+			this.low = low;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(high);
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof Digest)) {
+				return false;
+			}
+			Digest other = (Digest) obj;
+			return high == other.high && low == other.low;
+		}
+	}
+
+	/**
+	 * Computes the digest of a structure without copying it.
+	 *
+	 * @param structure
+	 * @return
+	 */
+	public static Digest digest(final String structure) {
+		MessageDigest md = DIGESTS.get();
+		byte[] buffer = DIGEST_BUFFERS.get();
+		int length = structure.length();
+		for (int start = 0; start < length; start += DIGEST_CHUNK_CHARS) {
+			int end = Math.min(length, start + DIGEST_CHUNK_CHARS);
+			int n = 0;
+			for (int i = start; i < end; i++) {
+				char c = structure.charAt(i);
+				buffer[n++] = (byte) (c >>> 8);
+				buffer[n++] = (byte) c;
+			}
+			md.update(buffer, 0, n);
+		}
+		byte[] d = md.digest();
+		return new Digest(toLong(d, 0), toLong(d, 8));
+	}
+
+	private static long toLong(final byte[] bytes, final int offset) {
+		long value = 0;
+		for (int i = offset; i < offset + 8; i++) {
+			value = (value << 8) | (bytes[i] & 0xFF);
+		}
+		return value;
+	}
+
+	private Segment segmentOf(final Digest digest) {
+		return segments[(int) (digest.low & (SEGMENTS - 1))];
+	}
+
+	/**
+	 * @param digest the digest of the structure, see {@link #digest(String)}
+	 * @return the cached hash key, or null if the structure is not cached
+	 */
+	public String get(final Digest digest) {
+		Segment segment = segmentOf(digest);
+		String key;
+		synchronized (segment) {
+			key = segment.get(digest);
+		}
+		if (key == null) {
+			misses.increment();
+		} else {
+			hits.increment();
+		}
+		return key;
+	}
+
+	/**
+	 * @param digest the digest of the structure, see {@link #digest(String)}
+	 * @param key
+	 */
+	public void put(final Digest digest, final String key) {
+		Segment segment = segmentOf(digest);
+		synchronized (segment) {
+			segment.put(digest, key);
+		}
+	}
+
+	/**
+	 * @return number of cached structures
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return the standardization options of the cached keys
+	 */
+	public int getOptions() {
+		return options;
+	}
+
+	/**
+	 * @return number of lookups answered from the cache
+	 */
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return number of lookups that had to be computed
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * Writes a snapshot of the cached entries, least recently used first within
+	 * each segment.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void save(final DataOutput out) throws IOException {
+		List<Map.Entry<Digest, String>> entries = new ArrayList<Map.Entry<Digest, String>>();
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				entries.addAll(segment.entrySet());
+			}
+		}
+		out.writeInt(options);
+		out.writeInt(entries.size());
+		for (Map.Entry<Digest, String> entry : entries) {
+			out.writeLong(entry.getKey().high);
+			out.writeLong(entry.getKey().low);
+			out.writeUTF(entry.getValue());
+		}
+	}
+
+	/**
+	 * Reads a snapshot written by {@link #save(DataOutput)}.
+	 *
+	 * @param in
+	 * @param maxEntries
+	 * @return
+	 * @throws IOException
+	 */
+	public static LychiResolverCache load(final DataInput in, final int maxEntries) throws IOException {
+		LychiResolverCache cache = new LychiResolverCache(maxEntries, in.readInt());
+		int size = in.readInt();
+		for (int i = 0; i < size; i++) {
+			Digest digest = new Digest(in.readLong(), in.readLong());
+			cache.put(digest, in.readUTF());
+		}
+		return cache;
+	}
+
+}
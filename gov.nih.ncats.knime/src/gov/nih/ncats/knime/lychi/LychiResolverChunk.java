@@ -0,0 +1,128 @@
+package gov.nih.ncats.knime.lychi;
+
+import org.knime.core.data.DataRow;
+import org.knime.core.node.BufferedDataContainer;
+import org.knime.core.node.BufferedDataTable;
+
+/**
+ * Consecutive rows of the input table, read by the
+ * {@link LychiResolverChunkReader} and processed by one
+ * {@link LychiResolverPartition}. The resolved and failed rows of a chunk are
+ * written to its own tables, so that the tables of all chunks concatenated in
+ * chunk order keep the input order, no matter which partition processed them.
+ *
+ * @author Vishal Siramshetty (siramshettyv2@nih.gov)
+ */
+public class LychiResolverChunk {
+
+	private final LychiResolverChunkReader reader;
+	private final long firstRow;
+	private final int size;
+
+	/** The rows not yet handed to a worker, released as they are taken. */
+	private DataRow[] rows;
+	/** Estimated size of each row, for the memory budget and the sorter. */
+	private final long[] sizes;
+
+	private BufferedDataContainer outputContainer;
+	private BufferedDataContainer errorContainer;
+
+	/**
+	 * @param reader   the reader creating the containers of the chunk
+	 * @param firstRow index of the first row in the input table
+	 * @param rows
+	 * @param sizes    estimated size of each row
+	 */
+	LychiResolverChunk(final LychiResolverChunkReader reader, final long firstRow, final DataRow[] rows,
+			final long[] sizes) {
+		this.reader = reader;
+		this.firstRow = firstRow;
+		this.rows = rows;
+		this.sizes = sizes;
+		this.size = rows.length;
+	}
+
+	/**
+	 * @return number of rows of the chunk
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return index of the first row of the chunk in the input table
+	 */
+	public long getFirstRow() {
+		return firstRow;
+	}
+
+	/**
+	 * @param position position of the row in the chunk
+	 * @return estimated size of the row in bytes
+	 */
+	public long getSize(final int position) {
+		return sizes[position];
+	}
+
+	/**
+	 * Hands out a row. The chunk does not keep it, so a row can be collected as
+	 * soon as it is processed.
+	 *
+	 * @param position position of the row in the chunk
+	 * @return
+	 */
+	public DataRow takeRow(final int position) {
+		DataRow row = rows[position];
+		rows[position] = null;
+		return row;
+	}
+
+	/**
+	 * @return the container of the resolved rows, created on first use
+	 */
+	public BufferedDataContainer getOutputContainer() {
+		if (outputContainer == null) {
+			outputContainer = reader.createOutputContainer();
+		}
+		return outputContainer;
+	}
+
+	/**
+	 * @return the container of the failed rows, created on first use
+	 */
+	public BufferedDataContainer getErrorContainer() {
+		if (errorContainer == null) {
+			errorContainer = reader.createErrorContainer();
+		}
+		return errorContainer;
+	}
+
+	/**
+	 * Closes the containers once all rows are processed.
+	 */
+	public void close() {
+		rows = null;
+		if (outputContainer != null) {
+			outputContainer.close();
+		}
+		if (errorContainer != null) {
+			errorContainer.close();
+		}
+	}
+
+	/**
+	 * @return the resolved rows, or null if there are none or they were written
+	 *         to a shared output
+	 */
+	public BufferedDataTable getOutputTable() {
+		return outputContainer == null ? null : outputContainer.getTable();
+	}
+
+	/**
+	 * @return the failed rows, or null if there are none
+	 */
+	public BufferedDataTable getErrorTable() {
+		return errorContainer == null ? null : errorContainer.getTable();
+	}
+
+}
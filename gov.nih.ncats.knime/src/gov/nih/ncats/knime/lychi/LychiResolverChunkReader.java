@@ -0,0 +1,210 @@
+package gov.nih.ncats.knime.lychi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.knime.core.data.DataRow;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.container.CloseableRowIterator;
+import org.knime.core.node.BufferedDataContainer;
+import org.knime.core.node.BufferedDataTable;
+import org.knime.core.node.ExecutionContext;
+
+/**
+ * Reads the input table once and cuts it into {@link LychiResolverChunk chunks}
+ * of consecutive rows, which the {@link LychiResolverPartition partitions} take
+ * as they become free. A row based table cannot seek to a row, so reading it
+ * once is cheaper than one reader per row range, each decoding and skipping all
+ * rows before its range.
+ * <p>
+ * At most one chunk per partition waits in the queue, so the reader stays a
+ * few chunks ahead of the partitions without reading the whole table into
+ * memory. The time the reader spends reading and the time the partitions spend
+ * waiting for a chunk are measured, so it can be told from the log whether the
+ * single reader limits the throughput.
+ *
+ * @author Vishal Siramshetty (siramshettyv2@nih.gov)
+ */
+public class LychiResolverChunkReader {
+
+	/** Chunks cut per partition, so that the partitions finish close together. */
+	private static final int CHUNKS_PER_PARTITION = 16;
+
+	private static final int MIN_CHUNK_ROWS = 1000;
+
+	private static final int MAX_CHUNK_ROWS = 100000;
+
+	/** Interval to check for the end of the input while waiting for a chunk. */
+	private static final long WAIT_MILLIS = 50;
+
+	private final BufferedDataTable table;
+	private final ExecutionContext exec;
+	private final DataTableSpec outputSpec;
+	private final DataTableSpec errorSpec;
+	private final int maxRowsInMemory;
+	private final LychiResolverMemoryBudget budget;
+	private final int chunkRows;
+	private final long chunkBytes;
+
+	private final BlockingQueue<LychiResolverChunk> queue;
+	/** All chunks in input order. */
+	private final List<LychiResolverChunk> chunks = new ArrayList<LychiResolverChunk>();
+	private final AtomicLong finishedRows = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+	private volatile boolean done;
+	private long readNanos;
+
+	/**
+	 * @param table           the input table
+	 * @param exec            context creating the containers of the chunks
+	 * @param outputSpec      spec of the resolved structures
+	 * @param errorSpec       spec of the failed structures
+	 * @param maxRowsInMemory rows the containers keep in memory before writing to
+	 *                        disk, 0 for the KNIME default
+	 * @param partitions      number of partitions taking chunks
+	 * @param budget          budget estimating the size of the rows
+	 */
+	public LychiResolverChunkReader(final BufferedDataTable table, final ExecutionContext exec,
+			final DataTableSpec outputSpec, final DataTableSpec errorSpec, final int maxRowsInMemory,
+			final int partitions, final LychiResolverMemoryBudget budget) {
+		this.table = table;
+		this.exec = exec;
+		this.outputSpec = outputSpec;
+		this.errorSpec = errorSpec;
+		this.maxRowsInMemory = maxRowsInMemory;
+		this.budget = budget;
+		long rows = table.size() / ((long) partitions * CHUNKS_PER_PARTITION);
+		this.chunkRows = (int) Math.max(MIN_CHUNK_ROWS, Math.min(MAX_CHUNK_ROWS, rows));
+		// the queued chunks and one chunk per partition stay within half the budget
+		this.chunkBytes = Math.max(1, budget.getMaxBytes() / (4L * partitions));
+		this.queue = new ArrayBlockingQueue<LychiResolverChunk>(partitions);
+	}
+
+	/**
+	 * Reads the table and queues its chunks. Blocks while the queue is full.
+	 *
+	 * @throws InterruptedException if the thread was interrupted while waiting
+	 */
+	public void run() throws InterruptedException {
+
+		try (CloseableRowIterator it = table.iterator()) {
+			long firstRow = 0;
+			while (true) {
+				long start = System.nanoTime();
+				List<DataRow> rows = new ArrayList<DataRow>(chunkRows);
+				// the size of a row is estimated once and kept with the chunk
+				long[] sizes = new long[chunkRows];
+				long bytes = 0;
+				while (rows.size() < chunkRows && bytes < chunkBytes && it.hasNext()) {
+					DataRow row = it.next();
+					sizes[rows.size()] = budget.estimateSize(row);
+					bytes += sizes[rows.size()];
+					rows.add(row);
+				}
+				readNanos += System.nanoTime() - start;
+				if (rows.isEmpty()) {
+					break;
+				}
+
+				LychiResolverChunk chunk = new LychiResolverChunk(this, firstRow, rows.toArray(new DataRow[0]),
+						Arrays.copyOf(sizes, rows.size()));
+				synchronized (chunks) {
+					chunks.add(chunk);
+				}
+				firstRow += chunk.size();
+				queue.put(chunk);
+			}
+		} finally {
+			done = true;
+		}
+	}
+
+	/**
+	 * Takes the next chunk, waiting for the reader if none is queued.
+	 *
+	 * @return the next chunk, or null once the input is read
+	 * @throws InterruptedException
+	 */
+	public LychiResolverChunk take() throws InterruptedException {
+		long start = System.nanoTime();
+		try {
+			while (true) {
+				// no chunk is queued after the reader is done
+				boolean last = done;
+				LychiResolverChunk chunk = queue.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+				if (chunk != null || last) {
+					return chunk;
+				}
+			}
+		} finally {
+			waitNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * @return a container for the resolved structures of a chunk
+	 */
+	BufferedDataContainer createOutputContainer() {
+		return createContainer(outputSpec);
+	}
+
+	/**
+	 * @return a container for the failed structures of a chunk
+	 */
+	BufferedDataContainer createErrorContainer() {
+		return createContainer(errorSpec);
+	}
+
+	private BufferedDataContainer createContainer(final DataTableSpec spec) {
+		// the context is shared by the partitions
+		synchronized (exec) {
+			return LychiResolverPartition.createContainer(exec, spec, maxRowsInMemory);
+		}
+	}
+
+	/**
+	 * Counts a processed row.
+	 *
+	 * @return number of rows processed so far by all partitions
+	 */
+	public long rowFinished() {
+		return finishedRows.incrementAndGet();
+	}
+
+	/**
+	 * @return number of rows of the input table
+	 */
+	public long getRowCount() {
+		return table.size();
+	}
+
+	/**
+	 * @return all chunks read so far, in input order
+	 */
+	public List<LychiResolverChunk> getChunks() {
+		synchronized (chunks) {
+			return new ArrayList<LychiResolverChunk>(chunks);
+		}
+	}
+
+	/**
+	 * @return time spent reading the input, not counting the time waiting for
+	 *         free room in the queue
+	 */
+	public long getReadMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(readNanos);
+	}
+
+	/**
+	 * @return time all partitions together spent waiting for a chunk
+	 */
+	public long getWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+	}
+
+}
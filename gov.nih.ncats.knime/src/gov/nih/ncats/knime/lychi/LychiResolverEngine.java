@@ -0,0 +1,324 @@
+package gov.nih.ncats.knime.lychi;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.concurrent.TimeoutException;
+
+import chemaxon.struc.Molecule;
+import chemaxon.util.MolHandler;
+import lychi.LyChIStandardizer;
+import lychi.TautomerGenerator;
+import lychi.tautomers.SayleDelanyTautomerGenerator;
+
+/**
+ * Resolves single structures (SMILES, MOL or SDF) to LyChI hash keys with the
+ * options of one node execution. Results are shared through a
+ * {@link LychiResolverCache} and the time spent per stage is recorded in
+ * {@link LychiResolverStatistics}. Instances are thread-safe.
+ *
+ * @author Vishal Siramshetty (siramshettyv2@nih.gov)
+ */
+public class LychiResolverEngine {
+
+	private static final int OPTION_REMOVE_SALT_SOLVENT = 1;
+	private static final int OPTION_KETO_ENOL = 2;
+
+	/** Number of layers of a full LyChI key. */
+	public static final int MAX_DEPTH = 4;
+
+	private final boolean removeSaltSolvent;
+	private final boolean ketoEnol;
+	private final int depth;
+	private final long timeoutMillis;
+	private final LychiResolverCache cache;
+	private final LychiResolverStatistics statistics;
+
+	/**
+	 * Creates an engine computing full LyChI keys.
+	 *
+	 * @param removeSaltSolvent
+	 * @param ketoEnol
+	 * @param cache             must have been filled with the same options
+	 * @param statistics
+	 */
+	public LychiResolverEngine(final boolean removeSaltSolvent, final boolean ketoEnol,
+			final LychiResolverCache cache, final LychiResolverStatistics statistics) {
+		this(removeSaltSolvent, ketoEnol, MAX_DEPTH, cache, statistics);
+	}
+
+	/**
+	 * @param removeSaltSolvent
+	 * @param ketoEnol
+	 * @param depth             number of LyChI layers to compute, 1 to
+	 *                          {@link #MAX_DEPTH}
+	 * @param cache             must have been filled with the same options
+	 * @param statistics
+	 */
+	public LychiResolverEngine(final boolean removeSaltSolvent, final boolean ketoEnol, final int depth,
+			final LychiResolverCache cache, final LychiResolverStatistics statistics) {
+		this(removeSaltSolvent, ketoEnol, depth, 0, cache, statistics);
+	}
+
+	/**
+	 * @param removeSaltSolvent
+	 * @param ketoEnol
+	 * @param depth             number of LyChI layers to compute, 1 to
+	 *                          {@link #MAX_DEPTH}
+	 * @param timeoutMillis     time limit for standardizing one structure, 0 for
+	 *                          no limit
+	 * @param cache             must have been filled with the same options
+	 * @param statistics
+	 */
+	public LychiResolverEngine(final boolean removeSaltSolvent, final boolean ketoEnol, final int depth,
+			final long timeoutMillis, final LychiResolverCache cache, final LychiResolverStatistics statistics) {
+		if (depth < 1 || depth > MAX_DEPTH) {
+			throw new IllegalArgumentException("Resolution depth must be between 1 and " + MAX_DEPTH + ": " + depth);
+		}
+		if (cache.getOptions() != getOptions(removeSaltSolvent, ketoEnol, depth)) {
+			throw new IllegalArgumentException("Cache was filled with different standardization options.");
+		}
+		this.removeSaltSolvent = removeSaltSolvent;
+		this.ketoEnol = ketoEnol;
+		this.depth = depth;
+		this.timeoutMillis = Math.max(0, timeoutMillis);
+		this.cache = cache;
+		this.statistics = statistics;
+	}
+
+	/**
+	 * Encodes the standardization options, so that cached keys are only reused
+	 * with the options they were computed with.
+	 *
+	 * @param removeSaltSolvent
+	 * @param ketoEnol
+	 * @return
+	 */
+	public static int getOptions(final boolean removeSaltSolvent, final boolean ketoEnol) {
+		return getOptions(removeSaltSolvent, ketoEnol, MAX_DEPTH);
+	}
+
+	/**
+	 * Encodes the standardization options and the resolution depth. Full keys are
+	 * encoded like before the depth was introduced, so that saved caches stay
+	 * valid.
+	 *
+	 * @param removeSaltSolvent
+	 * @param ketoEnol
+	 * @param depth
+	 * @return
+	 */
+	public static int getOptions(final boolean removeSaltSolvent, final boolean ketoEnol, final int depth) {
+		return (removeSaltSolvent ? OPTION_REMOVE_SALT_SOLVENT : 0) | (ketoEnol ? OPTION_KETO_ENOL : 0)
+				| (MAX_DEPTH - depth) << 2;
+	}
+
+	/**
+	 * @return the encoded standardization options of this engine
+	 */
+	public int getOptions() {
+		return getOptions(removeSaltSolvent, ketoEnol, depth);
+	}
+
+	/**
+	 * @return time limit for standardizing one structure in milliseconds, 0 if
+	 *         there is none
+	 */
+	public long getTimeout() {
+		return timeoutMillis;
+	}
+
+	/**
+	 * @return number of LyChI layers computed by this engine
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * The first layer is the heavy atom skeleton, which is the same for all
+	 * tautomers. The deeper layers include the hydrogen count of each atom, so
+	 * they depend on where the canonical tautomer puts the hydrogens.
+	 *
+	 * @return whether the canonical tautomer affects the computed layers
+	 */
+	private boolean needsCanonicalTautomer() {
+		return depth > 1;
+	}
+
+	/**
+	 * Resolve the given structure to its LyChI hash key.
+	 *
+	 * @param structure
+	 * @return the hash key, or null if LyChI did not produce one
+	 * @throws LychiResolverException if the structure could not be parsed or
+	 *                                standardized
+	 */
+	public String resolve(final String structure) throws LychiResolverException {
+
+		LychiResolverCache.Digest digest = LychiResolverCache.digest(structure);
+		String lychi_hk = cache.get(digest);
+		if (lychi_hk != null) {
+			return lychi_hk;
+		}
+
+		lychi_hk = computeKey(structure);
+		if (lychi_hk.isEmpty()) {
+			return null;
+		}
+
+		cache.put(digest, lychi_hk);
+		return lychi_hk;
+	}
+
+	/**
+	 * Creates the standardizer for one structure. The tautomer generator and the
+	 * standardizer keep the last tautomers and fragments they produced, so they
+	 * are not reused: nothing of a structure stays reachable once its key is
+	 * computed. Creating them takes well under a microsecond once the LyChI
+	 * classes are loaded, which is negligible next to the standardization.
+	 *
+	 * @return
+	 */
+	private LyChIStandardizer createStandardizer() {
+
+		if (!needsCanonicalTautomer()) {
+			LyChIStandardizer std = new LyChIStandardizer(new InputTautomer());
+			std.removeSaltOrSolvent(removeSaltSolvent);
+			return std;
+		}
+
+		TautomerGenerator tg =
+				// new NCGCTautomerGenerator ()
+				new SayleDelanyTautomerGenerator(1001);
+
+		if (ketoEnol) {
+			// hanlding keto-enol... might be too slow
+			((SayleDelanyTautomerGenerator) tg).set(SayleDelanyTautomerGenerator.FLAG_ALL);
+		}
+		if (timeoutMillis > 0) {
+			// the tautomer search stops at the limit instead of running on
+			((SayleDelanyTautomerGenerator) tg).setTimeout(timeoutMillis);
+		}
+
+		LyChIStandardizer std = new LyChIStandardizer(tg);
+		std.removeSaltOrSolvent(removeSaltSolvent);
+		return std;
+	}
+
+	/**
+	 * Parse and standardize the given structure and return its hash key. The
+	 * molecule, the parser and the standardizer do not outlive this method, so
+	 * they can be collected right after hashing. A structure whose standardization exceeds the time limit fails
+	 * with {@link LychiResolverException.Code#TIMEOUT}, since LyChI only
+	 * truncates the tautomer search and the key might not be canonical.
+	 *
+	 * @param smiles
+	 * @return
+	 * @throws LychiResolverException
+	 */
+	private String computeKey(String smiles) throws LychiResolverException {
+
+		long start = System.nanoTime();
+		Molecule mol;
+		try {
+			MolHandler mh = new MolHandler();
+			mh.setMolecule(smiles);
+			mol = mh.getMolecule();
+		} catch (Exception ex) {
+			throw new LychiResolverException(LychiResolverException.Code.PARSE_ERROR, ex);
+		}
+		long parsed = System.nanoTime();
+		statistics.addStage(LychiResolverStatistics.STAGE_PARSE, parsed - start);
+
+		try {
+			createStandardizer().standardize(mol);
+		} catch (Exception ex) {
+			throw new LychiResolverException(isValenceError(ex) ? LychiResolverException.Code.VALENCE_ERROR
+					: LychiResolverException.Code.STANDARDIZER_FAILURE, ex);
+		}
+		long standardized = System.nanoTime();
+		statistics.addStage(LychiResolverStatistics.STAGE_STANDARDIZE, standardized - parsed);
+		if (timeoutMillis > 0 && standardized - parsed > timeoutMillis * 1000000) {
+			throw new LychiResolverException(LychiResolverException.Code.TIMEOUT,
+					new TimeoutException("Standardization took longer than " + timeoutMillis + " ms"));
+		}
+
+		String hk;
+		try {
+			hk = depth == MAX_DEPTH ? LyChIStandardizer.hashKey(mol)
+					: String.join("-", Arrays.copyOf(LyChIStandardizer.hashKeyArray(mol), depth));
+		} catch (RuntimeException ex) {
+			throw new LychiResolverException(LychiResolverException.Code.STANDARDIZER_FAILURE, ex);
+		}
+		statistics.addStage(LychiResolverStatistics.STAGE_HASH, System.nanoTime() - standardized);
+
+		return hk;
+	}
+
+	/**
+	 * ChemAxon reports valence problems as generic exceptions, so they can only be
+	 * told apart by their message.
+	 * 
+	 * @param ex
+	 * @return
+	 */
+	private static boolean isValenceError(final Exception ex) {
+		String message = ex.getMessage();
+		return message != null && message.toLowerCase().contains("valence");
+	}
+
+	/**
+	 * Tautomer generator that keeps the structure as it is. It is used if only
+	 * layers are computed that do not depend on the canonical tautomer.
+	 */
+	private static final class InputTautomer implements TautomerGenerator {
+
+		private Molecule mol;
+
+		@Override
+		public int getTautomerCount() {
+			return 1;
+		}
+
+		@Override
+		public int getMaxTautomers() {
+			return 1;
+		}
+
+		@Override
+		public void setMaxTautomers(final int max) {
+		}
+
+		@Override
+		public int generate(final Molecule mol) {
+			this.mol = mol;
+			return 1;
+		}
+
+		@Override
+		public Enumeration<Molecule> tautomers() {
+			return Collections.enumeration(Collections.singletonList(mol));
+		}
+
+		@Override
+		public Molecule getCanonicalTautomer() {
+			return mol;
+		}
+	}
+
+	/**
+	 * @return the cache shared by this engine
+	 */
+	public LychiResolverCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * @return the statistics recorded by this engine
+	 */
+	public LychiResolverStatistics getStatistics() {
+		return statistics;
+	}
+
+}
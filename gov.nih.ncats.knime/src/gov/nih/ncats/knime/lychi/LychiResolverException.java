@@ -0,0 +1,88 @@
+package gov.nih.ncats.knime.lychi;
+
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Failure to resolve a structure, categorized by the stage that failed. The
+ * exception does not capture a stack trace of its own, it only wraps the cause
+ * thrown by ChemAxon or LyChI.
+ *
+ * @author Vishal Siramshetty (siramshettyv2@nih.gov)
+ */
+public class LychiResolverException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Error codes reported on the error port.
+	 */
+	public enum Code {
+		/** The structure could not be parsed. */
+		PARSE_ERROR("parse error"),
+		/** The structure has an invalid valence. */
+		VALENCE_ERROR("valence error"),
+		/** Standardizing the structure took longer than the time limit. */
+		TIMEOUT("timeout"),
+		/** Standardization or hashing failed. */
+		STANDARDIZER_FAILURE("standardizer failure"),
+		/** Any other failure. */
+		OTHER("other");
+
+		private final String label;
+
+		private Code(final String label) {
+			this.label = label;
+		}
+
+		/**
+		 * @return the human readable name of the code
+		 */
+		public String getLabel() {
+			return label;
+		}
+	}
+
+	private final Code code;
+
+	/**
+	 * @param code
+	 * @param cause
+	 */
+	public LychiResolverException(final Code code, final Throwable cause) {
+		super(null, cause, false, false);
+		this.code = code;
+	}
+
+	/**
+	 * @return the category of the failure
+	 */
+	public Code getCode() {
+		return code;
+	}
+
+	/**
+	 * Categorizes an exception thrown while resolving a structure.
+	 *
+	 * @param ex
+	 * @return
+	 */
+	public static Code codeOf(final Throwable ex) {
+		if (ex instanceof LychiResolverException) {
+			return ((LychiResolverException) ex).getCode();
+		}
+		if (ex instanceof TimeoutException) {
+			return Code.TIMEOUT;
+		}
+		return Code.OTHER;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getMessage() {
+		Throwable cause = getCause();
+		return cause == null ? code.getLabel() : cause.getLocalizedMessage();
+	}
+
+}
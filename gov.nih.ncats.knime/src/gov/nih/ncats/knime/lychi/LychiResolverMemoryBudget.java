@@ -0,0 +1,164 @@
+package gov.nih.ncats.knime.lychi;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataRow;
+
+/**
+ * Bounds the work handed to {@link LychiResolverNodeWorker} by the estimated
+ * size of the queued rows and by the observed heap headroom. The size of a row
+ * is estimated once, when it is read, and kept with its chunk. Rows are
+ * admitted with {@link #acquire(long)} before they are submitted; submission
+ * blocks while the budget is exhausted or the heap is running low, and resumes
+ * as soon as finished rows are {@link #release(long) released} by the worker.
+ * <p>
+ * The heap is considered low by its usage after the last garbage collection,
+ * like KNIME's memory alerts do, so garbage that is not yet collected does not
+ * throttle the submission.
+ *
+ * @author Vishal Siramshetty (siramshettyv2@nih.gov)
+ */
+public class LychiResolverMemoryBudget {
+
+	/** Rough per-cell overhead (object header, references) of a queued row. */
+	private static final long CELL_OVERHEAD_BYTES = 64;
+
+	/** Fraction of the tenured pool that may be occupied before we throttle. */
+	private static final double MAX_HEAP_USAGE = 0.85;
+
+	/** Interval to re-check the heap headroom while waiting. */
+	private static final long WAIT_MILLIS = 50;
+
+	/** The heap pools collected least often, usually the old generation. */
+	private static final List<MemoryPoolMXBean> TENURED_POOLS = findTenuredPools();
+
+	private final long maxBytes;
+	private final int minInFlightRows;
+	private final int[] columnIndices;
+
+	private long inFlightBytes;
+	private int inFlightRows;
+	private long throttleCount;
+
+	/**
+	 * @param maxBytes        estimated bytes that may be in flight at once
+	 * @param minInFlightRows rows always admitted while the heap is low, so that
+	 *                        the workers do not starve
+	 * @param columnIndices   indices of the structure columns
+	 */
+	public LychiResolverMemoryBudget(final long maxBytes, final int minInFlightRows, final int[] columnIndices) {
+		this.maxBytes = maxBytes;
+		this.minInFlightRows = minInFlightRows;
+		this.columnIndices = columnIndices;
+	}
+
+	/**
+	 * Creates a budget that allows a quarter of the maximum heap to be in flight.
+	 *
+	 * @param minInFlightRows
+	 * @param columnIndices
+	 * @return
+	 */
+	public static LychiResolverMemoryBudget createDefault(final int minInFlightRows, final int[] columnIndices) {
+		long maxBytes = Math.max(64L << 20, Runtime.getRuntime().maxMemory() / 4);
+		return new LychiResolverMemoryBudget(maxBytes, minInFlightRows, columnIndices);
+	}
+
+	/**
+	 * Estimates the heap footprint of a queued row: the structure payloads plus the
+	 * width of the row.
+	 *
+	 * @param row
+	 * @return estimated size in bytes
+	 */
+	public long estimateSize(final DataRow row) {
+		long size = row.getNumCells() * CELL_OVERHEAD_BYTES;
+		for (int columnIndex : columnIndices) {
+			DataCell cell = row.getCell(columnIndex);
+			if (!cell.isMissing()) {
+				size += 2L * cell.toString().length();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Blocks until a row of the given size fits into the budget. A row is always
+	 * admitted if nothing else is in flight, so a single oversized row cannot stall
+	 * the node.
+	 *
+	 * @param bytes estimated size of the row
+	 * @throws InterruptedException
+	 */
+	public synchronized void acquire(final long bytes) throws InterruptedException {
+		boolean throttled = false;
+		while ((inFlightRows > 0 && inFlightBytes + bytes > maxBytes)
+				|| (inFlightRows >= minInFlightRows && isHeapLow())) {
+			throttled = true;
+			wait(WAIT_MILLIS);
+		}
+		if (throttled) {
+			throttleCount++;
+		}
+		inFlightBytes += bytes;
+		inFlightRows++;
+	}
+
+	/**
+	 * Returns the share of a finished row to the budget.
+	 *
+	 * @param bytes the size previously passed to {@link #acquire(long)}
+	 */
+	public synchronized void release(final long bytes) {
+		inFlightBytes -= bytes;
+		inFlightRows--;
+		notifyAll();
+	}
+
+	/**
+	 * @return estimated bytes that may be in flight at once
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @return number of rows whose submission had to wait for memory
+	 */
+	public synchronized long getThrottleCount() {
+		return throttleCount;
+	}
+
+	private static List<MemoryPoolMXBean> findTenuredPools() {
+		List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			// the same choice of pool as KNIME's MemoryAlertSystem
+			if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported()
+					&& pool.isCollectionUsageThresholdSupported()) {
+				pools.add(pool);
+			}
+		}
+		return pools;
+	}
+
+	/**
+	 * @return true if a tenured pool was more than {@link #MAX_HEAP_USAGE} full
+	 *         after its last collection
+	 */
+	static boolean isHeapLow() {
+		for (MemoryPoolMXBean pool : TENURED_POOLS) {
+			MemoryUsage usage = pool.getCollectionUsage();
+			if (usage != null && usage.getMax() > 0 && usage.getUsed() > MAX_HEAP_USAGE * usage.getMax()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
@@ -2,12 +2,24 @@ package gov.nih.ncats.knime.lychi;
 
 import org.knime.chem.types.SdfValue;
 import org.knime.chem.types.SmilesValue;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.NodeSettings;
+import org.knime.core.node.NodeSettingsRO;
+import org.knime.core.node.NotConfigurableException;
 import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
 import org.knime.core.node.defaultnodesettings.DialogComponentBoolean;
-import org.knime.core.node.defaultnodesettings.DialogComponentColumnNameSelection;
+import org.knime.core.node.defaultnodesettings.DialogComponentColumnFilter2;
+import org.knime.core.node.defaultnodesettings.DialogComponentNumber;
 import org.knime.core.node.defaultnodesettings.DialogComponentString;
+import org.knime.core.node.defaultnodesettings.DialogComponentStringSelection;
 import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
+import org.knime.core.node.defaultnodesettings.SettingsModelColumnFilter2;
+import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
+import org.knime.core.node.util.filter.NameFilterConfiguration.EnforceOption;
+import org.knime.core.node.util.filter.column.DataColumnSpecFilterConfiguration;
+import org.knime.core.node.util.filter.column.DataTypeColumnFilter;
 
 /**
  * <code>NodeDialog</code> for the "Lychi Resolver" Node. This node uses the
@@ -23,15 +35,52 @@ import org.knime.core.node.defaultnodesettings.SettingsModelString;
  */
 public class LychiResolverNodeDialog extends DefaultNodeSettingsPane {
 
+	/** Config key of the structure columns. */
+	static final String CFG_INPUT_COLUMNS = "input_columns";
+
+	/** Config key of the option to sort the output by LyChI key. */
+	static final String CFG_SORT_BY_KEY = "sort_by_key";
+
+	/** Config key of the error reporting mode. */
+	static final String CFG_ERROR_REPORTING = "error_reporting";
+
+	/** Error reporting mode: input row and error message. */
+	static final String ERROR_REPORTING_FULL = "Input row and message";
+
+	/** Error reporting mode: row key, error code and error message. */
+	static final String ERROR_REPORTING_CODES_MESSAGES = "Error code and message";
+
+	/** Error reporting mode: row key and error code only. */
+	static final String ERROR_REPORTING_CODES = "Error code only";
+
+	/** Config key of the time limit per structure. */
+	static final String CFG_TIMEOUT = "timeout_millis";
+
+	/** Config key of the number of partitions. */
+	static final String CFG_PARTITIONS = "partitions";
+
+	/** Config key of the number of LyChI layers to compute. */
+	static final String CFG_RESOLUTION_DEPTH = "resolution_depth";
+
+	/** Config key of the number of rows an output table keeps in memory. */
+	static final String CFG_MAX_ROWS_IN_MEMORY = "max_rows_in_memory";
+
+	/** Config key of the option to save the result cache. */
+	static final String CFG_PERSIST_CACHE = "persist_cache";
+
+	/** Config key of the port of the local resolution service. */
+	static final String CFG_SERVICE_PORT = "service_port";
+
+	private final SettingsModelColumnFilter2 m_inputColumns = createInputColumnsModel();
+
 	/**
 	 * New pane for configuring LychiResolver node dialog.
 	 */
-	@SuppressWarnings("unchecked")
 	protected LychiResolverNodeDialog() {
 		super();
 
-		super.addDialogComponent(new DialogComponentColumnNameSelection(createInputColumnNameModel(),
-				"SMILES/SDF column: ", LychiResolverNodeModel.INPUT_COLUMN_SMI, SmilesValue.class, SdfValue.class));
+		super.addDialogComponent(
+				new DialogComponentColumnFilter2(m_inputColumns, LychiResolverNodeModel.INPUT_COLUMN_SMI));
 
 		super.addDialogComponent(new DialogComponentString(createNewColumnNameModel(), "Output column name: "));
 
@@ -39,6 +88,50 @@ public class LychiResolverNodeDialog extends DefaultNodeSettingsPane {
 
 		super.addDialogComponent(new DialogComponentBoolean(createKetoEnolOptionModel(), "keto-enol tautomerism"));
 
+		super.addDialogComponent(
+				new DialogComponentNumber(createResolutionDepthModel(), "Resolution depth (LyChI layers): ", 1));
+
+		super.addDialogComponent(new DialogComponentNumber(createTimeoutModel(),
+				"Time limit per structure in ms (0 = none): ", 1000));
+
+		super.addDialogComponent(new DialogComponentBoolean(createSortByKeyOptionModel(), "sort output by LyChI key"));
+
+		super.addDialogComponent(new DialogComponentStringSelection(createErrorReportingModel(), "Error reporting: ",
+				ERROR_REPORTING_FULL, ERROR_REPORTING_CODES_MESSAGES, ERROR_REPORTING_CODES));
+
+		super.addDialogComponent(new DialogComponentNumber(createPartitionsModel(), "Parallel partitions: ", 1));
+
+		super.addDialogComponent(new DialogComponentNumber(createMaxRowsInMemoryModel(),
+				"Max. rows in memory per table (0 = default): ", 1000));
+
+		super.addDialogComponent(new DialogComponentBoolean(createPersistCacheOptionModel(), "save result cache with node"));
+
+		super.addDialogComponent(
+				new DialogComponentNumber(createServicePortModel(), "Local service port (0 = off): ", 1));
+
+	}
+
+	/**
+	 * Settings of workflows saved before multiple input columns were supported
+	 * only have the single "input_column". The column filter would fall back to
+	 * its default of all structure columns, so it is set to include just that
+	 * column instead.
+	 */
+	@Override
+	public void loadAdditionalSettingsFrom(final NodeSettingsRO settings, final DataTableSpec[] specs)
+			throws NotConfigurableException {
+		if (settings.containsKey(CFG_INPUT_COLUMNS)) {
+			return;
+		}
+		SettingsModelString inputColumnName = createInputColumnNameModel();
+		try {
+			inputColumnName.loadSettingsFrom(settings);
+			if (inputColumnName.getStringValue() != null) {
+				loadLegacyInputColumn(m_inputColumns, inputColumnName.getStringValue());
+			}
+		} catch (InvalidSettingsException ise) {
+			// not configured yet, keep the default selection
+		}
 	}
 
 	//
@@ -46,7 +139,38 @@ public class LychiResolverNodeDialog extends DefaultNodeSettingsPane {
 	//
 
 	/**
-	 * Creates the settings model to be used for the input column.
+	 * Sets the input columns model to include only the given column of an old
+	 * workflow, new structure columns are excluded as well.
+	 * 
+	 * @param model
+	 * @param column
+	 * @throws InvalidSettingsException
+	 */
+	@SuppressWarnings("unchecked")
+	static final void loadLegacyInputColumn(final SettingsModelColumnFilter2 model, final String column)
+			throws InvalidSettingsException {
+		DataColumnSpecFilterConfiguration conf = new DataColumnSpecFilterConfiguration(CFG_INPUT_COLUMNS,
+				new DataTypeColumnFilter(SmilesValue.class, SdfValue.class));
+		conf.loadDefaults(new String[] { column }, null, EnforceOption.EnforceInclusion);
+		NodeSettings settings = new NodeSettings(CFG_INPUT_COLUMNS);
+		conf.saveConfiguration(settings);
+		model.loadSettingsFrom(settings);
+	}
+
+	/**
+	 * Creates the settings model to be used for the input columns. Only SMILES and
+	 * MOL/SDF compatible columns can be selected.
+	 * 
+	 * @return Settings model for input column selection.
+	 */
+	@SuppressWarnings("unchecked")
+	static final SettingsModelColumnFilter2 createInputColumnsModel() {
+		return new SettingsModelColumnFilter2(CFG_INPUT_COLUMNS, SmilesValue.class, SdfValue.class);
+	}
+
+	/**
+	 * Creates the settings model of the single input column used by earlier
+	 * versions of this node. It is only read to load old workflows.
 	 * 
 	 * @return Settings model for input column selection.
 	 */
@@ -85,4 +209,92 @@ public class LychiResolverNodeDialog extends DefaultNodeSettingsPane {
 		return new SettingsModelBoolean("keto_enol_tautomerism", false);
 	}
 
+	/**
+	 * Creates the settings model for the number of LyChI layers to compute. Lower
+	 * depths give coarser keys that are computed faster. The default is the full
+	 * key with all four layers.
+	 * 
+	 * @return Settings model for the resolution depth.
+	 */
+	static final SettingsModelIntegerBounded createResolutionDepthModel() {
+		return new SettingsModelIntegerBounded(CFG_RESOLUTION_DEPTH, LychiResolverEngine.MAX_DEPTH, 1,
+				LychiResolverEngine.MAX_DEPTH);
+	}
+
+	/**
+	 * Creates the settings model for the time limit of standardizing one
+	 * structure in milliseconds. Structures exceeding it are reported as timeout.
+	 * The default is 0, i.e. no limit.
+	 * 
+	 * @return Settings model for the time limit.
+	 */
+	static final SettingsModelIntegerBounded createTimeoutModel() {
+		return new SettingsModelIntegerBounded(CFG_TIMEOUT, 0, 0, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Creates the settings model for the boolean flag to determine, if the resolved
+	 * rows shall be sorted by their LyChI key instead of keeping the input order.
+	 * The default is false.
+	 * 
+	 * @return Settings model for check box whether to sort the output.
+	 */
+	static final SettingsModelBoolean createSortByKeyOptionModel() {
+		return new SettingsModelBoolean(CFG_SORT_BY_KEY, false);
+	}
+
+	/**
+	 * Creates the settings model for what is reported for failed structures on the
+	 * error port. The default is the full input row with the error message.
+	 * 
+	 * @return Settings model for the error reporting mode.
+	 */
+	static final SettingsModelString createErrorReportingModel() {
+		return new SettingsModelString(CFG_ERROR_REPORTING, ERROR_REPORTING_FULL);
+	}
+
+	/**
+	 * Creates the settings model for the number of partitions that process and
+	 * write chunks of the input table in parallel. The input is always read by one
+	 * reader. The default is 1, i.e. one writer.
+	 * 
+	 * @return Settings model for the number of partitions.
+	 */
+	static final SettingsModelIntegerBounded createPartitionsModel() {
+		return new SettingsModelIntegerBounded(CFG_PARTITIONS, 1, 1, 256);
+	}
+
+	/**
+	 * Creates the settings model for the number of rows an output table keeps in
+	 * memory before it is written to disk. The default is 0, which uses the KNIME
+	 * default.
+	 * 
+	 * @return Settings model for the in-memory row threshold.
+	 */
+	static final SettingsModelIntegerBounded createMaxRowsInMemoryModel() {
+		return new SettingsModelIntegerBounded(CFG_MAX_ROWS_IN_MEMORY, 0, 0, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Creates the settings model for the boolean flag to determine, if the result
+	 * cache shall be saved with the node, so that a re-execution starts warm. The
+	 * default is false.
+	 * 
+	 * @return Settings model for check box whether to save the result cache.
+	 */
+	static final SettingsModelBoolean createPersistCacheOptionModel() {
+		return new SettingsModelBoolean(CFG_PERSIST_CACHE, false);
+	}
+
+	/**
+	 * Creates the settings model for the loopback port of the local resolution
+	 * service, which serves the node's engine and cache while the node is
+	 * executed. The default is 0, i.e. no service.
+	 * 
+	 * @return Settings model for the service port.
+	 */
+	static final SettingsModelIntegerBounded createServicePortModel() {
+		return new SettingsModelIntegerBounded(CFG_SERVICE_PORT, 0, 0, 65535);
+	}
+
 }
@@ -26,7 +26,7 @@ public class LychiResolverNodeFactory extends NodeFactory<LychiResolverNodeModel
 	 */
 	@Override
 	public int getNrNodeViews() {
-		return 0;
+		return 1;
 	}
 
 	/**
@@ -1,11 +1,19 @@
 package gov.nih.ncats.knime.lychi;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.knime.chem.types.SdfValue;
 import org.knime.chem.types.SmilesValue;
@@ -25,8 +33,11 @@ import org.knime.core.node.NodeModel;
 import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
 import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
+import org.knime.core.node.defaultnodesettings.SettingsModelColumnFilter2;
 import org.knime.core.node.defaultnodesettings.SettingsModelColumnName;
+import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
+import org.knime.core.util.UniqueNameGenerator;
 
 /**
  * This is the model implementation of Lychi Resolver. This node uses the LyChI
@@ -47,9 +58,27 @@ public class LychiResolverNodeModel extends NodeModel {
 	/** Input data info index for Smiles value. */
 	protected static final int INPUT_COLUMN_SMI = 0;
 
-	/** Settings model for the column name of the input column. */
+	/** File in the node's internal directory holding statistics and cache. */
+	private static final String INTERNALS_FILE_NAME = "lychi_internals.bin.gz";
+
+	/**
+	 * Version of the internals file format. Version 2 stores digests instead of
+	 * structures in the cache.
+	 */
+	private static final int INTERNALS_VERSION = 2;
+
+	/** Settings model for the structure columns to resolve. */
+	private final SettingsModelColumnFilter2 m_modelInputColumns = LychiResolverNodeDialog.createInputColumnsModel();
+
+	/**
+	 * Settings model for the single input column of old workflows, only used if
+	 * {@link #m_useInputColumnName} is set.
+	 */
 	private final SettingsModelString m_modelInputColumnName = LychiResolverNodeDialog.createInputColumnNameModel();
 
+	/** True if the settings were saved before multiple input columns existed. */
+	private boolean m_useInputColumnName = false;
+
 	/**
 	 * Settings model for the column name of the new column to be added to the
 	 * output table.
@@ -62,6 +91,48 @@ public class LychiResolverNodeModel extends NodeModel {
 	/** Settings model for the option to turn on keto-enol tautomerism. */
 	private final SettingsModelBoolean m_modelKetoEnol = LychiResolverNodeDialog.createKetoEnolOptionModel();
 
+	/** Settings model for the option to sort the output by LyChI key. */
+	private final SettingsModelBoolean m_modelSortByKey = LychiResolverNodeDialog.createSortByKeyOptionModel();
+
+	/** Settings model for what is reported for failed structures. */
+	private final SettingsModelString m_modelErrorReporting = LychiResolverNodeDialog.createErrorReportingModel();
+
+	/** Settings model for the number of LyChI layers to compute. */
+	private final SettingsModelIntegerBounded m_modelResolutionDepth = LychiResolverNodeDialog
+			.createResolutionDepthModel();
+
+	/** Settings model for the time limit per structure. */
+	private final SettingsModelIntegerBounded m_modelTimeout = LychiResolverNodeDialog.createTimeoutModel();
+
+	/** Settings model for the number of row partitions processed in parallel. */
+	private final SettingsModelIntegerBounded m_modelPartitions = LychiResolverNodeDialog.createPartitionsModel();
+
+	/** Settings model for the number of rows an output table keeps in memory. */
+	private final SettingsModelIntegerBounded m_modelMaxRowsInMemory = LychiResolverNodeDialog
+			.createMaxRowsInMemoryModel();
+
+	/** Settings model for the option to save the result cache with the node. */
+	private final SettingsModelBoolean m_modelPersistCache = LychiResolverNodeDialog.createPersistCacheOptionModel();
+
+	/** Settings model for the port of the local resolution service. */
+	private final SettingsModelIntegerBounded m_modelServicePort = LychiResolverNodeDialog.createServicePortModel();
+
+	/**
+	 * Result cache, kept across executions as long as the standardization options
+	 * do not change and the cache is saved with the node. It is released on reset
+	 * otherwise.
+	 */
+	private LychiResolverCache m_cache;
+
+	/** Statistics of the last execution, null if not executed. */
+	private LychiResolverStatistics m_statistics;
+
+	/**
+	 * Local service resolving with the engine of the last execution, null if no
+	 * service port is set or the node is not executed.
+	 */
+	private LychiResolverService m_service;
+
 	/**
 	 * Constructor for the node model.
 	 */
@@ -84,52 +155,226 @@ public class LychiResolverNodeModel extends NodeModel {
 		// get boolean values from input table
 		boolean removeSaltSolvent = m_modelSaltSolvent.getBooleanValue();
 		boolean ketoEnol = m_modelKetoEnol.getBooleanValue();
+		int depth = m_modelResolutionDepth.getIntValue();
 
 		// check input table spec
 		BufferedDataTable inputTable = inData[0];
 		DataTableSpec inputTableSpec = inputTable.getDataTableSpec();
-		int smi_index = inputTableSpec.findColumnIndex(m_modelInputColumnName.getStringValue());
-
-		if (inputTableSpec.getColumnSpec(smi_index).getType().isCompatible(SmilesValue.class)
-				|| inputTableSpec.getColumnSpec(smi_index).getType().isCompatible(SdfValue.class)) {
-			logger.info("## Input type acceptable");
-		} else {
-			logger.info("## Input type not acceptable");
+		String[] inputColumns = getInputColumns(inputTableSpec);
+		int[] smi_indices = inputTableSpec.columnsToIndices(inputColumns);
+
+		for (int smi_index : smi_indices) {
+			if (inputTableSpec.getColumnSpec(smi_index).getType().isCompatible(SmilesValue.class)
+					|| inputTableSpec.getColumnSpec(smi_index).getType().isCompatible(SdfValue.class)) {
+				logger.info("## Input type acceptable");
+			} else {
+				logger.info("## Input type not acceptable");
+			}
 		}
 
 		// configure output tables
 		DataTableSpec outputTableSpec = createOutputSpec(inputTableSpec);
 		DataTableSpec errorTableSpec = createErrorTableSpec(inputTableSpec);
-		BufferedDataContainer outputContainer = exec.createDataContainer(outputTableSpec);
-		BufferedDataContainer errorContainer = exec.createDataContainer(errorTableSpec);
 
-		// multi-thread execution
-		LychiResolverNodeWorker worker = new LychiResolverNodeWorker(maxQueueSize, maxParallelWorkers, smi_index, exec,
-				inData[0].size(), outputContainer, errorContainer, removeSaltSolvent, ketoEnol);
+		// in-flight rows are bounded by their estimated size and the heap headroom
+		LychiResolverMemoryBudget budget = LychiResolverMemoryBudget.createDefault(maxParallelWorkers, smi_indices);
+
+		// all structure columns share the same engine and cache, a cache from a
+		// previous execution is reused if it was filled with the same options
+		int options = LychiResolverEngine.getOptions(removeSaltSolvent, ketoEnol, depth);
+		if (m_cache == null || m_cache.getOptions() != options) {
+			m_cache = new LychiResolverCache(LychiResolverCache.DEFAULT_MAX_ENTRIES, options);
+		}
+		m_statistics = new LychiResolverStatistics();
+		LychiResolverEngine engine = new LychiResolverEngine(removeSaltSolvent, ketoEnol, depth,
+				m_modelTimeout.getIntValue(), m_cache, m_statistics);
+
+		// sorted runs are spilled while the workers are computing and merged at the
+		// end, sorting by the first LyChI column. All partitions share the sorter.
+		BufferedDataContainer sortedContainer = null;
+		LychiResolverSortedOutput sortedOutput = null;
+		int maxRowsInMemory = m_modelMaxRowsInMemory.getIntValue();
+		if (m_modelSortByKey.getBooleanValue()) {
+			sortedContainer = LychiResolverPartition.createContainer(exec, outputTableSpec, maxRowsInMemory);
+			sortedOutput = new LychiResolverSortedOutput(exec, sortedContainer, inputTableSpec.getNumColumns(),
+					budget.getMaxBytes() / 2);
+		}
+
+		// the input is read once and cut into chunks of consecutive rows, which the
+		// partitions take as they become free, each with its own workers
+		long rowCount = inputTable.size();
+		int partitions = (int) Math.max(1, Math.min(m_modelPartitions.getIntValue(), rowCount));
+		int partitionWorkers = (int) Math.ceil((double) maxParallelWorkers / partitions);
+		String errorReporting = m_modelErrorReporting.getStringValue();
+		LychiResolverChunkReader reader = new LychiResolverChunkReader(inputTable, exec, outputTableSpec,
+				errorTableSpec, maxRowsInMemory, partitions, budget);
+
+		LychiResolverPartition[] parts = new LychiResolverPartition[partitions];
+		for (int p = 0; p < partitions; p++) {
+			parts[p] = new LychiResolverPartition(reader);
+
+			// multi-thread execution
+			parts[p].setWorker(new LychiResolverNodeWorker(Math.max(1, maxQueueSize / partitions), partitionWorkers,
+					smi_indices, exec, reader, sortedOutput, engine, budget,
+					LychiResolverNodeDialog.ERROR_REPORTING_FULL.equals(errorReporting),
+					!LychiResolverNodeDialog.ERROR_REPORTING_CODES.equals(errorReporting)));
+		}
 
 		try {
-			worker.run(inData[0]);
+			LychiResolverPartition.runAll(reader, parts, budget);
+			if (sortedOutput != null) {
+				sortedOutput.close();
+			}
 		} finally {
-			outputContainer.close();
-			errorContainer.close();
+			if (sortedOutput != null) {
+				sortedOutput.dispose();
+			}
+			if (sortedContainer != null) {
+				sortedContainer.close();
+			}
 		}
 
-		// once input table is processed, close the containers and return the tables
-		outputContainer.close();
-		errorContainer.close();
-		
-		BufferedDataTable out = outputContainer.getTable();
-		BufferedDataTable err = errorContainer.getTable();
+		// once input table is processed, concatenate the chunks in input order and
+		// return the tables
+		List<BufferedDataTable> outs = new ArrayList<BufferedDataTable>();
+		List<BufferedDataTable> errs = new ArrayList<BufferedDataTable>();
+		for (LychiResolverChunk chunk : reader.getChunks()) {
+			if (chunk.getOutputTable() != null) {
+				outs.add(chunk.getOutputTable());
+			}
+			if (chunk.getErrorTable() != null) {
+				errs.add(chunk.getErrorTable());
+			}
+		}
+		long[] failureCounts = new long[smi_indices.length];
+		long[] codeCounts = new long[LychiResolverException.Code.values().length];
+		for (LychiResolverPartition part : parts) {
+			addTo(failureCounts, part.getWorker().getFailureCounts());
+			addTo(codeCounts, part.getWorker().getCodeCounts());
+		}
+
+		BufferedDataTable out;
+		if (sortedContainer != null) {
+			out = sortedContainer.getTable();
+		} else {
+			out = concatenate(exec, outs, outputTableSpec);
+		}
+		BufferedDataTable err = concatenate(exec, errs, errorTableSpec);
 		
+		// a reader busy most of the time, or long waits of the partitions, mean
+		// that reading the input limits the throughput
+		logger.info("## Input read in " + reader.getChunks().size() + " chunks in " + reader.getReadMillis()
+				+ " ms, partitions waited " + reader.getWaitMillis() + " ms for input");
+		logger.info("## Stage timings: " + m_statistics.getSummary());
+		logger.info("## Cache hits/misses: " + m_cache.getHitCount() + "/" + m_cache.getMissCount());
+
+		if (budget.getThrottleCount() > 0) {
+			logger.info("## Submission throttled " + budget.getThrottleCount() + " times due to low memory");
+		}
+
 		@SuppressWarnings("deprecation")
 		int err_rows = err.getRowCount();
 		if(err_rows > 0) {
-			setWarningMessage("Failed to process " + err_rows + " rows. Check the second output port for more details.");
+			// failure histogram, per structure column and per error code
+			List<String> counts = new ArrayList<String>();
+			if (inputColumns.length > 1) {
+				for (int i = 0; i < inputColumns.length; i++) {
+					counts.add(inputColumns[i] + ": " + failureCounts[i]);
+				}
+			}
+			for (LychiResolverException.Code code : LychiResolverException.Code.values()) {
+				if (codeCounts[code.ordinal()] > 0) {
+					counts.add(code.getLabel() + ": " + codeCounts[code.ordinal()]);
+				}
+			}
+			setWarningMessage("Failed to process " + err_rows + " rows (" + String.join(", ", counts)
+					+ "). Check the second output port for more details.");
+		}
+
+		// other tools on this machine can resolve with the same options and cache
+		try {
+			startService(engine);
+		} catch (IOException ioe) {
+			setWarningMessage("The local service could not be started on port " + m_modelServicePort.getIntValue()
+					+ ": " + ioe.getMessage());
 		}
 		
 		return new BufferedDataTable[] { out, err };
 	}
 
+	/**
+	 * Starts the local service on the given engine if a service port is set.
+	 * 
+	 * @param engine
+	 * @throws IOException if the port cannot be opened
+	 */
+	private void startService(final LychiResolverEngine engine) throws IOException {
+
+		stopService();
+		int port = m_modelServicePort.getIntValue();
+		if (port == 0) {
+			return;
+		}
+		LychiResolverService service = new LychiResolverService(engine, Runtime.getRuntime().availableProcessors());
+		try {
+			service.start(port);
+		} catch (IOException ioe) {
+			service.stop();
+			throw ioe;
+		}
+		m_service = service;
+		logger.info("## Local service listening on http://localhost:" + port + "/");
+	}
+
+	/**
+	 * Stops the local service, if running.
+	 */
+	private void stopService() {
+
+		if (m_service != null) {
+			try {
+				m_service.stop();
+			} catch (IOException ioe) {
+				logger.warn("Stopping the local service failed: " + ioe.getMessage(), ioe);
+			}
+			m_service = null;
+		}
+	}
+
+	/**
+	 * Adds the counts element-wise to the totals.
+	 * 
+	 * @param totals
+	 * @param counts
+	 */
+	private static void addTo(long[] totals, long[] counts) {
+		for (int i = 0; i < totals.length; i++) {
+			totals[i] += counts[i];
+		}
+	}
+
+	/**
+	 * Concatenates the tables in the given order.
+	 *
+	 * @param exec
+	 * @param tables
+	 * @param spec   spec of an empty table if there are no tables
+	 * @return
+	 * @throws CanceledExecutionException
+	 */
+	private static BufferedDataTable concatenate(final ExecutionContext exec, final List<BufferedDataTable> tables,
+			final DataTableSpec spec) throws CanceledExecutionException {
+		if (tables.isEmpty()) {
+			BufferedDataContainer container = exec.createDataContainer(spec);
+			container.close();
+			return container.getTable();
+		}
+		if (tables.size() == 1) {
+			return tables.get(0);
+		}
+		return exec.createConcatenateTable(exec, tables.toArray(new BufferedDataTable[0]));
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -141,12 +386,16 @@ public class LychiResolverNodeModel extends NodeModel {
 		listValueClasses.add(SmilesValue.class);
 		listValueClasses.add(SdfValue.class);
 
-		// Auto guess the input column if not set - fails if no compatible column found
-		autoGuessColumn(inSpecs[0], m_modelInputColumnName, listValueClasses, 0,
-				"No SMILES or MOL/SDF compatible column in input table.");
+		if (m_useInputColumnName) {
+			// Auto guess the input column if not set - fails if no compatible column found
+			autoGuessColumn(inSpecs[0], m_modelInputColumnName, listValueClasses, 0,
+					"No SMILES or MOL/SDF compatible column in input table.");
 
-		// Determines, if the input column exists - fails if it does not
-		checkColumnExistence(inSpecs[0], m_modelInputColumnName, listValueClasses);
+			// Determines, if the input column exists - fails if it does not
+			checkColumnExistence(inSpecs[0], m_modelInputColumnName, listValueClasses);
+		} else if (getInputColumns(inSpecs[0]).length == 0) {
+			throw new InvalidSettingsException("No SMILES or MOL/SDF compatible column selected.");
+		}
 
 		// Determine, if the new column name has been set and if it is really unique
 		checkColumnNameUniqueness(inSpecs[0], null, m_modelNewColumnName, "Output column has not been specified yet.",
@@ -376,48 +625,85 @@ public class LychiResolverNodeModel extends NodeModel {
 	}
 
 	/**
-	 * Creates the output table spec from the input spec. For each double column in
-	 * the input, one String column will be created containing the formatted double
-	 * value as String.
+	 * Returns the names of the structure columns to resolve.
 	 * 
 	 * @param inputTableSpec
 	 * @return
 	 */
-	private DataTableSpec createOutputSpec(DataTableSpec inputTableSpec) {
-
-		DataColumnSpec[] outputColumnSpecs = new DataColumnSpec[inputTableSpec.getNumColumns() + 1];
+	private String[] getInputColumns(DataTableSpec inputTableSpec) {
 
-		for (int i = 0; i < inputTableSpec.getNumColumns(); i++) {
-			DataColumnSpec columnSpec = inputTableSpec.getColumnSpec(i);
-			outputColumnSpecs[i] = columnSpec;
+		if (m_useInputColumnName) {
+			return new String[] { m_modelInputColumnName.getStringValue() };
 		}
+		return m_modelInputColumns.applyTo(inputTableSpec).getIncludes();
+	}
 
-		outputColumnSpecs[inputTableSpec.getNumColumns()] = new DataColumnSpecCreator(
-				DataTableSpec.getUniqueColumnName(inputTableSpec, m_modelNewColumnName.getStringValue()),
-				StringCell.TYPE).createSpec();
+	/**
+	 * Creates the output table spec from the input spec. One String column holding
+	 * the LyChI identifier is appended per structure column. With a single
+	 * structure column the new column name is used as is, otherwise the name of
+	 * the structure column is added in brackets.
+	 * 
+	 * @param inputTableSpec
+	 * @return
+	 */
+	private DataTableSpec createOutputSpec(DataTableSpec inputTableSpec) {
 
-		return new DataTableSpec(outputColumnSpecs);
+		return appendColumns(inputTableSpec, m_modelNewColumnName.getStringValue());
 
 	}
 
 	/**
 	 * Creates the output table spec for the unpaersed structures based on the input
-	 * spec.
+	 * spec. Unless the full input row is reported, the table only holds an error
+	 * code (and message) column per structure column.
 	 * 
 	 * @param inputTableSpec
 	 * @return
 	 */
 	private DataTableSpec createErrorTableSpec(DataTableSpec inputTableSpec) {
 
-		DataColumnSpec[] outputColumnSpecs = new DataColumnSpec[inputTableSpec.getNumColumns() + 1];
+		String errorReporting = m_modelErrorReporting.getStringValue();
+		if (LychiResolverNodeDialog.ERROR_REPORTING_FULL.equals(errorReporting)) {
+			return appendColumns(inputTableSpec, "Error Message");
+		}
+
+		boolean keepMessages = !LychiResolverNodeDialog.ERROR_REPORTING_CODES.equals(errorReporting);
+		String[] inputColumns = getInputColumns(inputTableSpec);
+		List<DataColumnSpec> columnSpecs = new ArrayList<DataColumnSpec>();
+		for (String inputColumn : inputColumns) {
+			String suffix = inputColumns.length == 1 ? "" : " (" + inputColumn + ")";
+			columnSpecs.add(new DataColumnSpecCreator("Error Code" + suffix, StringCell.TYPE).createSpec());
+			if (keepMessages) {
+				columnSpecs.add(new DataColumnSpecCreator("Error Message" + suffix, StringCell.TYPE).createSpec());
+			}
+		}
+
+		return new DataTableSpec(columnSpecs.toArray(new DataColumnSpec[columnSpecs.size()]));
+	}
+
+	/**
+	 * Appends one String column per structure column to the input spec.
+	 * 
+	 * @param inputTableSpec
+	 * @param baseName
+	 * @return
+	 */
+	private DataTableSpec appendColumns(DataTableSpec inputTableSpec, String baseName) {
+
+		String[] inputColumns = getInputColumns(inputTableSpec);
+		DataColumnSpec[] outputColumnSpecs = new DataColumnSpec[inputTableSpec.getNumColumns() + inputColumns.length];
 
 		for (int i = 0; i < inputTableSpec.getNumColumns(); i++) {
 			DataColumnSpec columnSpec = inputTableSpec.getColumnSpec(i);
 			outputColumnSpecs[i] = columnSpec;
 		}
 
-		outputColumnSpecs[inputTableSpec.getNumColumns()] = new DataColumnSpecCreator(
-				DataTableSpec.getUniqueColumnName(inputTableSpec, "Error Message"), StringCell.TYPE).createSpec();
+		UniqueNameGenerator nameGenerator = new UniqueNameGenerator(inputTableSpec);
+		for (int i = 0; i < inputColumns.length; i++) {
+			String name = inputColumns.length == 1 ? baseName : baseName + " (" + inputColumns[i] + ")";
+			outputColumnSpecs[inputTableSpec.getNumColumns() + i] = nameGenerator.newColumn(name, StringCell.TYPE);
+		}
 
 		return new DataTableSpec(outputColumnSpecs);
 	}
@@ -430,10 +716,22 @@ public class LychiResolverNodeModel extends NodeModel {
 
 		// save user settings
 
-		m_modelInputColumnName.saveSettingsTo(settings);
+		if (m_useInputColumnName) {
+			m_modelInputColumnName.saveSettingsTo(settings);
+		} else {
+			m_modelInputColumns.saveSettingsTo(settings);
+		}
 		m_modelNewColumnName.saveSettingsTo(settings);
 		m_modelSaltSolvent.saveSettingsTo(settings);
 		m_modelKetoEnol.saveSettingsTo(settings);
+		m_modelResolutionDepth.saveSettingsTo(settings);
+		m_modelTimeout.saveSettingsTo(settings);
+		m_modelSortByKey.saveSettingsTo(settings);
+		m_modelErrorReporting.saveSettingsTo(settings);
+		m_modelPartitions.saveSettingsTo(settings);
+		m_modelMaxRowsInMemory.saveSettingsTo(settings);
+		m_modelPersistCache.saveSettingsTo(settings);
+		m_modelServicePort.saveSettingsTo(settings);
 
 	}
 
@@ -445,10 +743,44 @@ public class LychiResolverNodeModel extends NodeModel {
 
 		// load (valid) settings
 
-		m_modelInputColumnName.loadSettingsFrom(settings);
+		// workflows saved before multiple input columns only have "input_column"
+		m_useInputColumnName = !settings.containsKey(LychiResolverNodeDialog.CFG_INPUT_COLUMNS);
+		if (m_useInputColumnName) {
+			m_modelInputColumnName.loadSettingsFrom(settings);
+			if (m_modelInputColumnName.getStringValue() != null) {
+				LychiResolverNodeDialog.loadLegacyInputColumn(m_modelInputColumns,
+						m_modelInputColumnName.getStringValue());
+			}
+		} else {
+			m_modelInputColumns.loadSettingsFrom(settings);
+		}
 		m_modelNewColumnName.loadSettingsFrom(settings);
 		m_modelSaltSolvent.loadSettingsFrom(settings);
 		m_modelKetoEnol.loadSettingsFrom(settings);
+		if (settings.containsKey(LychiResolverNodeDialog.CFG_RESOLUTION_DEPTH)) {
+			m_modelResolutionDepth.loadSettingsFrom(settings);
+		}
+		if (settings.containsKey(LychiResolverNodeDialog.CFG_TIMEOUT)) {
+			m_modelTimeout.loadSettingsFrom(settings);
+		}
+		if (settings.containsKey(LychiResolverNodeDialog.CFG_SORT_BY_KEY)) {
+			m_modelSortByKey.loadSettingsFrom(settings);
+		}
+		if (settings.containsKey(LychiResolverNodeDialog.CFG_ERROR_REPORTING)) {
+			m_modelErrorReporting.loadSettingsFrom(settings);
+		}
+		if (settings.containsKey(LychiResolverNodeDialog.CFG_PARTITIONS)) {
+			m_modelPartitions.loadSettingsFrom(settings);
+		}
+		if (settings.containsKey(LychiResolverNodeDialog.CFG_MAX_ROWS_IN_MEMORY)) {
+			m_modelMaxRowsInMemory.loadSettingsFrom(settings);
+		}
+		if (settings.containsKey(LychiResolverNodeDialog.CFG_PERSIST_CACHE)) {
+			m_modelPersistCache.loadSettingsFrom(settings);
+		}
+		if (settings.containsKey(LychiResolverNodeDialog.CFG_SERVICE_PORT)) {
+			m_modelServicePort.loadSettingsFrom(settings);
+		}
 
 	}
 
@@ -460,10 +792,38 @@ public class LychiResolverNodeModel extends NodeModel {
 
 		// check if the settings could be applied
 
-		m_modelInputColumnName.validateSettings(settings);
+		if (settings.containsKey(LychiResolverNodeDialog.CFG_INPUT_COLUMNS)) {
+			m_modelInputColumns.validateSettings(settings);
+		} else {
+			m_modelInputColumnName.validateSettings(settings);
+		}
 		m_modelNewColumnName.validateSettings(settings);
 		m_modelSaltSolvent.validateSettings(settings);
 		m_modelKetoEnol.validateSettings(settings);
+		if (settings.containsKey(LychiResolverNodeDialog.CFG_RESOLUTION_DEPTH)) {
+			m_modelResolutionDepth.validateSettings(settings);
+		}
+		if (settings.containsKey(LychiResolverNodeDialog.CFG_TIMEOUT)) {
+			m_modelTimeout.validateSettings(settings);
+		}
+		if (settings.containsKey(LychiResolverNodeDialog.CFG_SORT_BY_KEY)) {
+			m_modelSortByKey.validateSettings(settings);
+		}
+		if (settings.containsKey(LychiResolverNodeDialog.CFG_ERROR_REPORTING)) {
+			m_modelErrorReporting.validateSettings(settings);
+		}
+		if (settings.containsKey(LychiResolverNodeDialog.CFG_PARTITIONS)) {
+			m_modelPartitions.validateSettings(settings);
+		}
+		if (settings.containsKey(LychiResolverNodeDialog.CFG_MAX_ROWS_IN_MEMORY)) {
+			m_modelMaxRowsInMemory.validateSettings(settings);
+		}
+		if (settings.containsKey(LychiResolverNodeDialog.CFG_PERSIST_CACHE)) {
+			m_modelPersistCache.validateSettings(settings);
+		}
+		if (settings.containsKey(LychiResolverNodeDialog.CFG_SERVICE_PORT)) {
+			m_modelServicePort.validateSettings(settings);
+		}
 
 	}
 
@@ -474,12 +834,48 @@ public class LychiResolverNodeModel extends NodeModel {
 	protected void loadInternals(final File internDir, final ExecutionMonitor exec)
 			throws IOException, CanceledExecutionException {
 
-		// TODO load internal data.
-		// Everything handed to output ports is loaded automatically (data
-		// returned by the execute method, models loaded in loadModelContent,
-		// and user settings set through loadSettingsFrom - is all taken care
-		// of). Load here only the other internals that need to be restored
-		// (e.g. data used by the views). But views is disables for now.
+		// Everything handed to output ports is loaded automatically. Restore the
+		// statistics of the last execution and, if saved, the result cache.
+		File file = new File(internDir, INTERNALS_FILE_NAME);
+		if (!file.isFile()) {
+			return;
+		}
+
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+			int version = in.readInt();
+			if (version != INTERNALS_VERSION) {
+				logger.warn("Ignoring internals of unknown version " + version);
+				return;
+			}
+			if (in.readBoolean()) {
+				m_statistics = LychiResolverStatistics.load(in);
+			}
+			if (in.readBoolean()) {
+				m_cache = LychiResolverCache.load(in, LychiResolverCache.DEFAULT_MAX_ENTRIES);
+			}
+		}
+
+		// the node is executed, so the service is available again after reopening
+		if (m_modelServicePort.getIntValue() != 0) {
+			boolean removeSaltSolvent = m_modelSaltSolvent.getBooleanValue();
+			boolean ketoEnol = m_modelKetoEnol.getBooleanValue();
+			int depth = m_modelResolutionDepth.getIntValue();
+			int options = LychiResolverEngine.getOptions(removeSaltSolvent, ketoEnol, depth);
+			if (m_cache == null || m_cache.getOptions() != options) {
+				m_cache = new LychiResolverCache(LychiResolverCache.DEFAULT_MAX_ENTRIES, options);
+			}
+			if (m_statistics == null) {
+				m_statistics = new LychiResolverStatistics();
+			}
+			try {
+				startService(new LychiResolverEngine(removeSaltSolvent, ketoEnol, depth, m_modelTimeout.getIntValue(),
+						m_cache, m_statistics));
+			} catch (IOException ioe) {
+				logger.warn("The local service could not be started on port " + m_modelServicePort.getIntValue()
+						+ ": " + ioe.getMessage());
+			}
+		}
 
 	}
 
@@ -490,12 +886,23 @@ public class LychiResolverNodeModel extends NodeModel {
 	protected void saveInternals(final File internDir, final ExecutionMonitor exec)
 			throws IOException, CanceledExecutionException {
 
-		// TODO save internal models.
-		// Everything written to output ports is saved automatically (data
-		// returned by the execute method, models saved in the saveModelContent,
-		// and user settings saved through saveSettingsTo - is all taken care
-		// of). Save here only the other internals that need to be preserved
-		// (e.g. data used by the views). But views is disables for now.
+		// Everything written to output ports is saved automatically. Save the
+		// statistics of the last execution and, if requested, the result cache.
+		File file = new File(internDir, INTERNALS_FILE_NAME);
+		boolean saveCache = m_modelPersistCache.getBooleanValue() && m_cache != null;
+
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file))))) {
+			out.writeInt(INTERNALS_VERSION);
+			out.writeBoolean(m_statistics != null);
+			if (m_statistics != null) {
+				m_statistics.save(out);
+			}
+			out.writeBoolean(saveCache);
+			if (saveCache) {
+				m_cache.save(out);
+			}
+		}
 
 	}
 
@@ -504,9 +911,29 @@ public class LychiResolverNodeModel extends NodeModel {
 	 */
 	@Override
 	protected void reset() {
-		// TODO Code executed on reset.
-		// Models build during execute are cleared here.
-		// Also data handled in load/saveInternals will be erased here.
+		stopService();
+		// A saved cache is kept, so a re-execution after an upstream change starts
+		// warm. Otherwise an idle node does not hold on to it.
+		if (!m_modelPersistCache.getBooleanValue()) {
+			m_cache = null;
+		}
+		m_statistics = null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void onDispose() {
+		stopService();
+	}
+
+	/**
+	 * @return the statistics of the last execution, or null if the node is not
+	 *         executed
+	 */
+	public LychiResolverStatistics getStatistics() {
+		return m_statistics;
 	}
 
 }
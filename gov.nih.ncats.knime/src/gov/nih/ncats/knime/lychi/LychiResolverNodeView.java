@@ -1,26 +1,39 @@
 package gov.nih.ncats.knime.lychi;
 
+import java.awt.Dimension;
+
+import javax.swing.JEditorPane;
+import javax.swing.JScrollPane;
+
 import org.knime.core.node.NodeView;
 
 /**
  * <code>NodeView</code> for the "Lychi Resolver" Node. This node uses the LyChI
  * library (https://github.com/ncats/lychi) developed by the Informatics Group
  * at the NCATS/NIH to convert SMILES into LyChI identifier.
+ * <p>
+ * The view shows the {@link LychiResolverStatistics} of the last execution:
+ * the time spent per processing stage and the slowest rows.
  *
  * @author Vishal Siramshetty (siramshettyv2@nih.gov)
  */
 public class LychiResolverNodeView extends NodeView<LychiResolverNodeModel> {
 
+	private final JEditorPane m_pane;
+
 	/**
 	 * Creates a new view.
-	 * 
+	 *
 	 * @param nodeModel The model (class: {@link LychiResolverNodeModel})
 	 */
 	protected LychiResolverNodeView(final LychiResolverNodeModel nodeModel) {
 		super(nodeModel);
 
-		// TODO instantiate the components of the view here.
-
+		m_pane = new JEditorPane("text/html", "");
+		m_pane.setEditable(false);
+		JScrollPane scrollPane = new JScrollPane(m_pane);
+		scrollPane.setPreferredSize(new Dimension(500, 400));
+		setComponent(scrollPane);
 	}
 
 	/**
@@ -29,14 +42,45 @@ public class LychiResolverNodeView extends NodeView<LychiResolverNodeModel> {
 	@Override
 	protected void modelChanged() {
 
-		// TODO retrieve the new model from your nodemodel and
-		// update the view.
-		LychiResolverNodeModel nodeModel = (LychiResolverNodeModel) getNodeModel();
+		LychiResolverNodeModel nodeModel = getNodeModel();
 		assert nodeModel != null;
 
-		// be aware of a possibly not executed nodeModel! The data you retrieve
-		// from your nodemodel could be null, emtpy, or invalid in any kind.
+		// the statistics are null if the node is not executed
+		LychiResolverStatistics stats = nodeModel.getStatistics();
+		m_pane.setText(stats == null ? "<html><body>Node is not executed.</body></html>" : createHtml(stats));
+		m_pane.setCaretPosition(0);
+	}
+
+	private static String createHtml(final LychiResolverStatistics stats) {
+		StringBuilder sb = new StringBuilder("<html><body>");
+		sb.append("<h3>Processing stages</h3><table>");
+		sb.append("<tr><th align=left>Stage</th><th align=right>Structures</th>"
+				+ "<th align=right>Total (ms)</th><th align=right>Mean (ms)</th><th align=right>Max (ms)</th></tr>");
+		for (int i = 0; i < LychiResolverStatistics.STAGE_NAMES.length; i++) {
+			long count = stats.getCount(i);
+			double totalMillis = stats.getTotalNanos(i) / 1e6;
+			sb.append("<tr><td>").append(LychiResolverStatistics.STAGE_NAMES[i]).append("</td>");
+			sb.append("<td align=right>").append(count).append("</td>");
+			sb.append("<td align=right>").append(String.format("%.1f", totalMillis)).append("</td>");
+			sb.append("<td align=right>").append(String.format("%.3f", count == 0 ? 0 : totalMillis / count))
+					.append("</td>");
+			sb.append("<td align=right>").append(String.format("%.3f", stats.getMaxNanos(i) / 1e6))
+					.append("</td></tr>");
+		}
+		sb.append("</table>");
+
+		sb.append("<h3>Slowest rows</h3><table>");
+		sb.append("<tr><th align=left>Row ID</th><th align=right>Time (ms)</th></tr>");
+		for (LychiResolverStatistics.SlowRow row : stats.getSlowestRows()) {
+			sb.append("<tr><td>").append(escape(row.getRowKey())).append("</td><td align=right>")
+					.append(String.format("%.3f", row.getNanos() / 1e6)).append("</td></tr>");
+		}
+		sb.append("</table></body></html>");
+		return sb.toString();
+	}
 
+	private static String escape(final String text) {
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
 	}
 
 	/**
@@ -44,8 +88,7 @@ public class LychiResolverNodeView extends NodeView<LychiResolverNodeModel> {
 	 */
 	@Override
 	protected void onClose() {
-
-		// TODO things to do when closing the view
+		// nothing to release
 	}
 
 	/**
@@ -53,8 +96,7 @@ public class LychiResolverNodeView extends NodeView<LychiResolverNodeModel> {
 	 */
 	@Override
 	protected void onOpen() {
-
-		// TODO things to do when opening the view
+		modelChanged();
 	}
 
 }
@@ -1,24 +1,20 @@
 package gov.nih.ncats.knime.lychi;
 
+import java.util.Queue;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 
 import org.knime.base.data.append.column.AppendedColumnRow;
 import org.knime.core.data.DataCell;
 import org.knime.core.data.DataRow;
 import org.knime.core.data.DataType;
+import org.knime.core.data.def.DefaultRow;
 import org.knime.core.data.def.StringCell;
-import org.knime.core.node.BufferedDataContainer;
 import org.knime.core.node.CanceledExecutionException;
 import org.knime.core.node.ExecutionContext;
 import org.knime.core.util.MultiThreadWorker;
 
-import chemaxon.struc.Molecule;
-import chemaxon.util.MolHandler;
-import lychi.LyChIStandardizer;
-import lychi.TautomerGenerator;
-import lychi.tautomers.SayleDelanyTautomerGenerator;
-
 /**
  * This is the worker node for Lychi Resolver. Original Source: CDK KNIME
  * (https://github.com/cdk/nodes4knime/blob/master/org.openscience.cdk.knime/src/org/openscience/cdk/knime/convert/molecule2cdk/Molecule2CDKWorker.java)
@@ -27,108 +23,155 @@ import lychi.tautomers.SayleDelanyTautomerGenerator;
  */
 
 @SuppressWarnings("deprecation")
-public class LychiResolverNodeWorker extends MultiThreadWorker<DataRow, DataRow> {
+public class LychiResolverNodeWorker extends MultiThreadWorker<DataRow, LychiResolverNodeWorker.Result> {
+
+	/** Shared cells holding the error code labels, indexed by ordinal. */
+	private static final DataCell[] CODE_CELLS = new DataCell[LychiResolverException.Code.values().length];
+
+	static {
+		for (LychiResolverException.Code code : LychiResolverException.Code.values()) {
+			CODE_CELLS[code.ordinal()] = new StringCell(code.getLabel());
+		}
+	}
 
 	private final ExecutionContext exec;
-	private final BufferedDataContainer bdc1;
-	private final BufferedDataContainer bdc2;
-	private final double max;
-	private final int columnIndex;
-	private final boolean removeSaltSolvent;
-	private final boolean ketoEnol;
-
-	public LychiResolverNodeWorker(final int maxQueueSize, final int maxActiveInstanceSize, final int columnIndex,
-			final ExecutionContext exec, final long max, final BufferedDataContainer bdc1, final BufferedDataContainer bdc2, boolean removeSaltSolvent,
-			boolean ketoEnol) {
+	private final LychiResolverChunkReader reader;
+	private final LychiResolverSortedOutput sharedOutput;
+	private final int[] columnIndices;
+	private final LychiResolverEngine engine;
+	private final LychiResolverMemoryBudget budget;
+	private final boolean copyInput;
+	private final boolean keepMessages;
+	private final long[] failureCounts;
+	private final long[] codeCounts;
+
+	/** Chunks with submitted rows that are not all finished, oldest first. */
+	private final Queue<LychiResolverChunk> chunks = new ConcurrentLinkedQueue<LychiResolverChunk>();
+	/** Finished rows of the oldest chunk, only used in processFinished. */
+	private int finishedInChunk;
+
+	/**
+	 * @param reader       the reader handing out the chunks, which counts the
+	 *                     finished rows of all partitions for the progress
+	 * @param sharedOutput sorter shared by all partitions, or null to write the
+	 *                     resolved structures to the containers of the chunks
+	 * @param copyInput    true to write the full input row to the error port,
+	 *                     false to only write the row key and error codes
+	 * @param keepMessages true to report the error message text, always true if
+	 *                     the input is copied
+	 */
+	public LychiResolverNodeWorker(final int maxQueueSize, final int maxActiveInstanceSize, final int[] columnIndices,
+			final ExecutionContext exec, final LychiResolverChunkReader reader,
+			final LychiResolverSortedOutput sharedOutput, final LychiResolverEngine engine,
+			final LychiResolverMemoryBudget budget, final boolean copyInput, final boolean keepMessages) {
 		super(maxQueueSize, maxActiveInstanceSize);
 		this.exec = exec;
-		this.bdc1 = bdc1;
-		this.bdc2 = bdc2;
-		this.max = max;
-		this.columnIndex = columnIndex;
-		this.removeSaltSolvent = removeSaltSolvent;
-		this.ketoEnol = ketoEnol;
+		this.reader = reader;
+		this.sharedOutput = sharedOutput;
+		this.columnIndices = columnIndices;
+		this.engine = engine;
+		this.budget = budget;
+		this.copyInput = copyInput;
+		this.keepMessages = keepMessages || copyInput;
+		this.failureCounts = new long[columnIndices.length];
+		this.codeCounts = new long[LychiResolverException.Code.values().length];
 
 	}
 
-	@Override
-	protected DataRow compute(DataRow row, long index) throws Exception {
-		// TODO Auto-generated method stub
-
-		DataCell cell = row.getCell(columnIndex);
-		
-		if (!cell.isMissing()) {
-			// IAtomContainer mol = converter.convert(getNotation(cell));
-			Molecule mol = parseSMILES(cell.toString());
-			String lychi_hk = mol.getProperty("LyChI_HK").trim();
-			if (lychi_hk != null && !lychi_hk.isEmpty()) {
-				cell = new StringCell(lychi_hk);
-			} else {
-				cell = DataType.getMissingCell();
-			}
-		}
-
-		row = new AppendedColumnRow(row, cell);
-
-		return row;
+	/**
+	 * Registers a chunk before its first row is submitted.
+	 *
+	 * @param chunk
+	 */
+	void addChunk(final LychiResolverChunk chunk) {
+		chunks.add(chunk);
 	}
 
 	/**
-	 * Parse the given SMILES string and return a standardized molecule object.
-	 * 
-	 * @param smiles
-	 * @param std
-	 * @return
-	 * @throws Exception
+	 * Closes the chunks whose rows were not all finished, if the worker stopped
+	 * early.
 	 */
-	private Molecule parseSMILES(String smiles) throws Exception {
-
-		TautomerGenerator tg =
-				// new NCGCTautomerGenerator ()
-				new SayleDelanyTautomerGenerator(1001);
-
-		if (ketoEnol) {
-			// hanlding keto-enol... might be too slow
-			((SayleDelanyTautomerGenerator) tg).set(SayleDelanyTautomerGenerator.FLAG_ALL);
-			// logger.info("## Keto-Enol tautomerism is on");
-		} else {
-			// logger.info("## Keto-Enol tautomerism is off");
+	void closeChunks() {
+		for (LychiResolverChunk chunk = chunks.poll(); chunk != null; chunk = chunks.poll()) {
+			chunk.close();
 		}
+	}
 
-		LyChIStandardizer std = new LyChIStandardizer(tg);
-		std.removeSaltOrSolvent(removeSaltSolvent);
+	@Override
+	protected Result compute(DataRow row, long index) throws Exception {
 
-		MolHandler mh = new MolHandler();
-		mh.setMolecule(smiles);
-		Molecule mol = mh.getMolecule();
+		long start = System.nanoTime();
+		Result result = new Result(columnIndices.length);
 
-		std.standardize(mol);
+		for (int i = 0; i < columnIndices.length; i++) {
+			DataCell cell = row.getCell(columnIndices[i]);
 
-		//String std_smi = ChemUtil.canonicalSMILES(mol, true);
-		String hk = LyChIStandardizer.hashKey(mol);
+			if (cell.isMissing()) {
+				result.keys[i] = cell;
+				continue;
+			}
 
-		//mol.setProperty("LyChI_SMILES", std_smi);
-		mol.setProperty("LyChI_HK", hk);
+			try {
+				String lychi_hk = engine.resolve(cell.toString());
+				result.keys[i] = lychi_hk != null ? new StringCell(lychi_hk) : DataType.getMissingCell();
+				result.resolved = true;
+			} catch (Exception ex) {
+				// failures are reported per structure column
+				result.setError(i, ex, keepMessages);
+			}
+		}
 
-		return mol;
+		engine.getStatistics().addRow(row.getKey().getString(), System.nanoTime() - start);
+		return result;
 	}
 
 	@Override
 	protected void processFinished(ComputationTask task)
 			throws ExecutionException, CancellationException, InterruptedException {
 
+		Result result;
 		try {
-			DataRow append = task.get();
-			if (!append.getCell(columnIndex).isMissing()) {
-				bdc1.addRowToTable(append);
-			}
+			result = task.get();
 		}catch(Exception ex) {
-			DataCell cell = new StringCell(ex.getLocalizedMessage());
-			DataRow row = new AppendedColumnRow(task.getInput(), cell);
-			bdc2.addRowToTable(row);
+			result = new Result(columnIndices.length);
+			for (int i = 0; i < columnIndices.length; i++) {
+				result.setError(i, ex, keepMessages);
+			}
+		}
+
+		// rows finish in submission order, so the row belongs to the oldest chunk
+		LychiResolverChunk chunk = chunks.peek();
+		long bytes = chunk.getSize(finishedInChunk);
+
+		// the input row leaves the queue, give its share back to the submitter
+		budget.release(bytes);
+
+		// failed columns are reported on the error port, the keys of the other
+		// columns are kept in the output with a missing cell for each failed column
+		if (result.codes != null) {
+			for (int i = 0; i < failureCounts.length; i++) {
+				if (result.codes[i] != null) {
+					failureCounts[i]++;
+					codeCounts[result.codes[i].ordinal()]++;
+				}
+			}
+			chunk.getErrorContainer().addRowToTable(createErrorRow(task.getInput(), result));
+		}
+		if (result.resolved) {
+			DataRow row = new AppendedColumnRow(task.getInput(), result.keys);
+			if (sharedOutput != null) {
+				sharedOutput.push(row, chunk.getFirstRow() + finishedInChunk, bytes);
+			} else {
+				chunk.getOutputContainer().addRowToTable(row);
+			}
+		}
+		if (++finishedInChunk == chunk.size()) {
+			chunks.poll().close();
+			finishedInChunk = 0;
 		}
 
-		exec.setProgress(this.getFinishedCount() / max, this.getFinishedCount() + " (active/submitted: "
+		long finished = reader.rowFinished();
+		exec.setProgress(finished / (double) reader.getRowCount(), finished + " (active/submitted: "
 				+ this.getActiveCount() + "/" + (this.getSubmittedCount() - this.getFinishedCount()) + ")");
 
 		try {
@@ -139,4 +182,79 @@ public class LychiResolverNodeWorker extends MultiThreadWorker<DataRow, DataRow>
 
 	}
 
+	/**
+	 * Creates the row for the error port: either the input row with one message
+	 * per structure column, or only the row key with one error code (and message)
+	 * per structure column.
+	 */
+	private DataRow createErrorRow(final DataRow input, final Result result) {
+
+		if (copyInput) {
+			DataCell[] messages = new DataCell[columnIndices.length];
+			for (int i = 0; i < messages.length; i++) {
+				messages[i] = result.messageCell(i);
+			}
+			return new AppendedColumnRow(input, messages);
+		}
+
+		int cellsPerColumn = keepMessages ? 2 : 1;
+		DataCell[] cells = new DataCell[cellsPerColumn * columnIndices.length];
+		for (int i = 0; i < columnIndices.length; i++) {
+			LychiResolverException.Code code = result.codes[i];
+			cells[cellsPerColumn * i] = code != null ? CODE_CELLS[code.ordinal()] : DataType.getMissingCell();
+			if (keepMessages) {
+				cells[cellsPerColumn * i + 1] = result.messageCell(i);
+			}
+		}
+		return new DefaultRow(input.getKey(), cells);
+	}
+
+	/**
+	 * @return number of failed structures per structure column
+	 */
+	public long[] getFailureCounts() {
+		return failureCounts.clone();
+	}
+
+	/**
+	 * @return number of failed structures per error code, indexed by the ordinal
+	 *         of {@link LychiResolverException.Code}
+	 */
+	public long[] getCodeCounts() {
+		return codeCounts.clone();
+	}
+
+	/**
+	 * The LyChI keys of one row, one per structure column, and the error codes
+	 * and messages of the columns that failed. The row is written to the output
+	 * if at least one structure was resolved.
+	 */
+	static final class Result {
+
+		private final DataCell[] keys;
+		private LychiResolverException.Code[] codes;
+		private String[] messages;
+		private boolean resolved;
+
+		private Result(final int numColumns) {
+			keys = new DataCell[numColumns];
+		}
+
+		private void setError(final int column, final Exception ex, final boolean keepMessage) {
+			if (codes == null) {
+				codes = new LychiResolverException.Code[keys.length];
+				messages = new String[keys.length];
+			}
+			keys[column] = DataType.getMissingCell();
+			codes[column] = LychiResolverException.codeOf(ex);
+			if (keepMessage) {
+				messages[column] = String.valueOf(ex.getLocalizedMessage());
+			}
+		}
+
+		private DataCell messageCell(final int column) {
+			return messages[column] != null ? new StringCell(messages[column]) : DataType.getMissingCell();
+		}
+	}
+
 }
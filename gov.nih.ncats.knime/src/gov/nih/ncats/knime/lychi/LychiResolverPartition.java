@@ -0,0 +1,213 @@
+package gov.nih.ncats.knime.lychi;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.knime.core.data.DataRow;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.node.BufferedDataContainer;
+import org.knime.core.node.ExecutionContext;
+import org.knime.core.util.ThreadUtils;
+
+/**
+ * Processes {@link LychiResolverChunk chunks} of the input table with its own
+ * {@link LychiResolverNodeWorker}. The partitions share one
+ * {@link LychiResolverChunkReader} and take its chunks as they become free.
+ * Each chunk is written to its own containers, so the output keeps the input
+ * order whichever partition processed a chunk.
+ *
+ * @author Vishal Siramshetty (siramshettyv2@nih.gov)
+ */
+public class LychiResolverPartition {
+
+	private final LychiResolverChunkReader reader;
+
+	private LychiResolverNodeWorker worker;
+
+	/**
+	 * @param reader the reader shared by all partitions
+	 */
+	public LychiResolverPartition(final LychiResolverChunkReader reader) {
+		this.reader = reader;
+	}
+
+	/**
+	 * Creates a container that writes its rows to disk once it holds more than
+	 * the given number of rows in memory.
+	 *
+	 * @param exec
+	 * @param spec
+	 * @param maxRowsInMemory 0 for the KNIME default
+	 * @return
+	 */
+	public static BufferedDataContainer createContainer(final ExecutionContext exec, final DataTableSpec spec,
+			final int maxRowsInMemory) {
+		if (maxRowsInMemory <= 0) {
+			return exec.createDataContainer(spec);
+		}
+		// the container limits cells, not rows
+		long maxCells = (long) maxRowsInMemory * Math.max(1, spec.getNumColumns());
+		return exec.createDataContainer(spec, true, (int) Math.min(Integer.MAX_VALUE, maxCells));
+	}
+
+	/**
+	 * @return the reader shared by all partitions
+	 */
+	public LychiResolverChunkReader getReader() {
+		return reader;
+	}
+
+	/**
+	 * @param worker the worker processing this partition
+	 */
+	public void setWorker(final LychiResolverNodeWorker worker) {
+		this.worker = worker;
+	}
+
+	/**
+	 * @return the worker processing this partition
+	 */
+	public LychiResolverNodeWorker getWorker() {
+		return worker;
+	}
+
+	/**
+	 * Takes chunks from the reader until the input is read and processes their
+	 * rows with the worker. The containers of the chunks are closed by the worker
+	 * once their last row is finished, or here if the partition fails.
+	 *
+	 * @param budget
+	 * @throws Exception
+	 */
+	public void run(final LychiResolverMemoryBudget budget) throws Exception {
+		try {
+			worker.run(() -> new ChunkIterator(budget));
+			// the input ends early if the thread was interrupted
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		} finally {
+			worker.closeChunks();
+		}
+	}
+
+	/**
+	 * Hands out the rows of the chunks taken from the reader, and registers each
+	 * chunk with the worker before its first row. Each row is admitted to the
+	 * memory budget before it is handed out. If the thread is interrupted while
+	 * waiting, the iteration ends and the interrupt flag is restored, so the
+	 * worker stops.
+	 */
+	private final class ChunkIterator implements Iterator<DataRow> {
+
+		private final LychiResolverMemoryBudget budget;
+		private LychiResolverChunk chunk;
+		private int position;
+		/** True if the row at the position is admitted to the budget. */
+		private boolean admitted;
+		private boolean end;
+
+		private ChunkIterator(final LychiResolverMemoryBudget budget) {
+			this.budget = budget;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (admitted) {
+				return true;
+			}
+			while (!end && (chunk == null || position == chunk.size())) {
+				try {
+					chunk = reader.take();
+				} catch (InterruptedException ie) {
+					chunk = null;
+					Thread.currentThread().interrupt();
+				}
+				if (chunk == null) {
+					end = true;
+				} else {
+					worker.addChunk(chunk);
+					position = 0;
+				}
+			}
+			if (end) {
+				return false;
+			}
+			try {
+				budget.acquire(chunk.getSize(position));
+			} catch (InterruptedException ie) {
+				end = true;
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			admitted = true;
+			return true;
+		}
+
+		@Override
+		public DataRow next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			admitted = false;
+			return chunk.takeRow(position++);
+		}
+	}
+
+	/**
+	 * Runs the reader and all partitions, each in its own thread. If one of them
+	 * fails, the others are cancelled and the failure is rethrown.
+	 *
+	 * @param reader
+	 * @param parts
+	 * @param budget shared by all partitions
+	 * @throws Exception
+	 */
+	public static void runAll(final LychiResolverChunkReader reader, final LychiResolverPartition[] parts,
+			final LychiResolverMemoryBudget budget) throws Exception {
+
+		ExecutorService pool = Executors.newFixedThreadPool(parts.length + 1);
+		try {
+			CompletionService<Void> completion = new ExecutorCompletionService<Void>(pool);
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			futures.add(completion.submit(ThreadUtils.callableWithContext(() -> {
+				reader.run();
+				return null;
+			})));
+			for (LychiResolverPartition part : parts) {
+				futures.add(completion.submit(ThreadUtils.callableWithContext(() -> {
+					part.run(budget);
+					return null;
+				})));
+			}
+
+			// in order of completion, so that a failure is not hidden behind a
+			// reader waiting for partitions that are gone
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					completion.take().get();
+				} catch (ExecutionException ee) {
+					for (LychiResolverPartition part : parts) {
+						part.worker.cancel(true);
+					}
+					for (Future<Void> future : futures) {
+						future.cancel(true);
+					}
+					Throwable cause = ee.getCause();
+					throw cause instanceof Exception ? (Exception) cause : ee;
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+}
@@ -0,0 +1,349 @@
+package gov.nih.ncats.knime.lychi;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local HTTP service around a {@link LychiResolverEngine}, so that other tools
+ * can resolve structures with the same options and result cache as the node.
+ * The node starts it on the engine of its last execution if a service port is
+ * configured, and stops it when the node is reset. The service only listens on
+ * the loopback interface and resolves on its own pool of worker threads.
+ * <p>
+ * <code>POST /resolve</code> takes a batch of structures, one SMILES per line,
+ * or MOL blocks separated by <code>$$$$</code> if the content type is
+ * <code>chemical/x-mdl-sdfile</code>. The structures are resolved in parallel
+ * and the response is streamed with chunked encoding, one line per structure in
+ * input order: the LyChI key, an empty line if LyChI produced none, or
+ * <code>ERROR</code> and the error code separated by a tab.
+ * <code>GET /metrics</code> returns throughput, latency percentiles, cache and
+ * stage statistics as <code>name=value</code> lines. Connections are kept alive,
+ * so pipelined requests are answered in order.
+ *
+ * @author Vishal Siramshetty (siramshettyv2@nih.gov)
+ */
+public class LychiResolverService {
+
+	/** Number of recent structure latencies the percentiles are computed from. */
+	private static final int LATENCY_WINDOW = 10000;
+
+	/** Largest request body accepted. */
+	private static final int MAX_BODY_BYTES = 256 << 20;
+
+	private static final String SDF_CONTENT_TYPE = "chemical/x-mdl-sdfile";
+
+	private final LychiResolverEngine engine;
+	private final ExecutorService workers;
+	private final ExecutorService connections = Executors.newCachedThreadPool(daemonThreads("LyChI service connection"));
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong structures = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final long[] latencies = new long[LATENCY_WINDOW];
+	private long latencyCount;
+	private final long startNanos = System.nanoTime();
+
+	private ServerSocket serverSocket;
+
+	/**
+	 * @param engine  the engine, shared with any other user of its cache
+	 * @param threads number of threads resolving structures
+	 */
+	public LychiResolverService(final LychiResolverEngine engine, final int threads) {
+		this.engine = engine;
+		this.workers = Executors.newFixedThreadPool(threads, daemonThreads("LyChI service worker"));
+	}
+
+	/**
+	 * The threads of the service must not keep KNIME from exiting if a node is
+	 * not disposed properly.
+	 */
+	private static ThreadFactory daemonThreads(final String name) {
+		return r -> {
+			Thread t = new Thread(r, name);
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+	/**
+	 * Starts listening on the loopback interface.
+	 *
+	 * @param port the port, or 0 to pick a free one
+	 * @return the port the service listens on
+	 * @throws IOException
+	 */
+	public synchronized int start(final int port) throws IOException {
+		serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		Thread acceptor = new Thread(this::acceptConnections, "LyChI service " + serverSocket.getLocalPort());
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Stops the service and its threads.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void stop() throws IOException {
+		if (serverSocket != null) {
+			serverSocket.close();
+		}
+		connections.shutdownNow();
+		workers.shutdownNow();
+	}
+
+	private void acceptConnections() {
+		try {
+			while (!serverSocket.isClosed()) {
+				Socket socket = serverSocket.accept();
+				connections.execute(() -> handleConnection(socket));
+			}
+		} catch (SocketException se) {
+			// closed by stop()
+		} catch (IOException ioe) {
+			// the server socket failed, the service ends
+		}
+	}
+
+	/**
+	 * Answers the requests of one connection in order until the client closes
+	 * it or asks to close it.
+	 */
+	private void handleConnection(final Socket socket) {
+		try (Socket s = socket;
+				InputStream in = new BufferedInputStream(s.getInputStream());
+				OutputStream out = s.getOutputStream()) {
+			boolean keepAlive = true;
+			while (keepAlive) {
+				String requestLine = readLine(in);
+				if (requestLine == null) {
+					return;
+				}
+				if (requestLine.isEmpty()) {
+					continue;
+				}
+				Map<String, String> headers = new HashMap<String, String>();
+				for (String line = readLine(in); line != null && !line.isEmpty(); line = readLine(in)) {
+					int colon = line.indexOf(':');
+					if (colon > 0) {
+						headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT),
+								line.substring(colon + 1).trim());
+					}
+				}
+				keepAlive = !"close".equalsIgnoreCase(headers.get("connection"))
+						&& !requestLine.endsWith("HTTP/1.0");
+				requests.incrementAndGet();
+
+				String[] parts = requestLine.split(" ");
+				String method = parts[0];
+				String path = parts.length > 1 ? parts[1] : "/";
+
+				if ("POST".equals(method) && "/resolve".equals(path)) {
+					if (headers.containsKey("transfer-encoding") || !headers.containsKey("content-length")) {
+						sendText(out, 411, "Length Required", "Content-Length is required\n");
+						return;
+					}
+					long length;
+					try {
+						length = Long.parseLong(headers.get("content-length"));
+					} catch (NumberFormatException nfe) {
+						length = -1;
+					}
+					if (length < 0) {
+						sendText(out, 400, "Bad Request", "Invalid Content-Length\n");
+						return;
+					}
+					if (length > MAX_BODY_BYTES) {
+						sendText(out, 413, "Payload Too Large", "Batch exceeds " + MAX_BODY_BYTES + " bytes\n");
+						return;
+					}
+					byte[] body = readFully(in, (int) length);
+					String contentType = headers.getOrDefault("content-type", "text/plain");
+					resolveBatch(out, splitBatch(new String(body, StandardCharsets.UTF_8),
+							contentType.startsWith(SDF_CONTENT_TYPE)));
+				} else if ("GET".equals(method) && "/metrics".equals(path)) {
+					sendText(out, 200, "OK", getMetrics());
+				} else {
+					sendText(out, 404, "Not Found", "Use POST /resolve or GET /metrics\n");
+				}
+				out.flush();
+			}
+		} catch (IOException | InterruptedException ex) {
+			// client went away or service stopped
+		}
+	}
+
+	private static List<String> splitBatch(final String body, final boolean sdf) {
+		List<String> batch = new ArrayList<String>();
+		if (sdf) {
+			for (String record : body.split("\\$\\$\\$\\$\\r?\\n?")) {
+				if (!record.trim().isEmpty()) {
+					batch.add(record);
+				}
+			}
+		} else {
+			for (String line : body.split("\\r?\\n")) {
+				if (!line.trim().isEmpty()) {
+					batch.add(line.trim());
+				}
+			}
+		}
+		return batch;
+	}
+
+	/**
+	 * Resolves the batch on the worker threads and streams one line per structure
+	 * in input order as soon as it is available.
+	 */
+	private void resolveBatch(final OutputStream out, final List<String> batch)
+			throws IOException, InterruptedException {
+
+		List<Future<String>> results = new ArrayList<Future<String>>(batch.size());
+		for (String structure : batch) {
+			results.add(workers.submit(() -> resolveLine(structure)));
+		}
+
+		writeAscii(out, "HTTP/1.1 200 OK\r\nContent-Type: text/plain; charset=utf-8\r\n"
+				+ "Transfer-Encoding: chunked\r\n\r\n");
+		for (Future<String> result : results) {
+			String line;
+			try {
+				line = result.get();
+			} catch (ExecutionException ee) {
+				failures.incrementAndGet();
+				line = "ERROR\t" + LychiResolverException.Code.OTHER.getLabel() + "\n";
+			}
+			byte[] chunk = line.getBytes(StandardCharsets.UTF_8);
+			writeAscii(out, Integer.toHexString(chunk.length) + "\r\n");
+			out.write(chunk);
+			writeAscii(out, "\r\n");
+			out.flush();
+		}
+		writeAscii(out, "0\r\n\r\n");
+	}
+
+	private String resolveLine(final String structure) {
+		long start = System.nanoTime();
+		String line;
+		try {
+			String key = engine.resolve(structure);
+			line = (key == null ? "" : key) + "\n";
+		} catch (LychiResolverException | RuntimeException ex) {
+			failures.incrementAndGet();
+			line = "ERROR\t" + LychiResolverException.codeOf(ex).getLabel() + "\n";
+		}
+		recordLatency(System.nanoTime() - start);
+		return line;
+	}
+
+	private synchronized void recordLatency(final long nanos) {
+		latencies[(int) (latencyCount++ % LATENCY_WINDOW)] = nanos;
+		structures.incrementAndGet();
+	}
+
+	/**
+	 * @return the current metrics as name=value lines
+	 */
+	public String getMetrics() {
+		long[] window;
+		synchronized (this) {
+			window = Arrays.copyOf(latencies, (int) Math.min(latencyCount, LATENCY_WINDOW));
+		}
+		Arrays.sort(window);
+		double uptime = (System.nanoTime() - startNanos) / 1e9;
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("requests=").append(requests.get()).append('\n');
+		sb.append("structures=").append(structures.get()).append('\n');
+		sb.append("failures=").append(failures.get()).append('\n');
+		sb.append("throughput_structures_per_s=")
+				.append(String.format(Locale.ROOT, "%.1f", structures.get() / Math.max(uptime, 1e-9))).append('\n');
+		sb.append("latency_p50_ms=").append(String.format(Locale.ROOT, "%.3f", percentile(window, 0.50) / 1e6))
+				.append('\n');
+		sb.append("latency_p99_ms=").append(String.format(Locale.ROOT, "%.3f", percentile(window, 0.99) / 1e6))
+				.append('\n');
+		sb.append("cache_size=").append(engine.getCache().size()).append('\n');
+		sb.append("cache_hits=").append(engine.getCache().getHitCount()).append('\n');
+		sb.append("cache_misses=").append(engine.getCache().getMissCount()).append('\n');
+		sb.append("stages=").append(engine.getStatistics().getSummary()).append('\n');
+		return sb.toString();
+	}
+
+	private static long percentile(final long[] sorted, final double p) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int index = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+
+	private static void sendText(final OutputStream out, final int status, final String reason, final String text)
+			throws IOException {
+		byte[] body = text.getBytes(StandardCharsets.UTF_8);
+		writeAscii(out, "HTTP/1.1 " + status + " " + reason + "\r\nContent-Type: text/plain; charset=utf-8\r\n"
+				+ "Content-Length: " + body.length + "\r\n\r\n");
+		out.write(body);
+		out.flush();
+	}
+
+	private static void writeAscii(final OutputStream out, final String s) throws IOException {
+		out.write(s.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * Reads a CRLF or LF terminated line, or returns null at the end of the
+	 * stream.
+	 */
+	private static String readLine(final InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != -1) {
+			if (b == '\n') {
+				break;
+			}
+			if (b != '\r') {
+				line.write(b);
+			}
+		}
+		if (b == -1 && line.size() == 0) {
+			return null;
+		}
+		return new String(line.toByteArray(), StandardCharsets.US_ASCII);
+	}
+
+	private static byte[] readFully(final InputStream in, final int length) throws IOException {
+		byte[] body = new byte[length];
+		int read = 0;
+		while (read < length) {
+			int n = in.read(body, read, length - read);
+			if (n == -1) {
+				throw new IOException("Unexpected end of request body");
+			}
+			read += n;
+		}
+		return body;
+	}
+
+}
@@ -0,0 +1,305 @@
+package gov.nih.ncats.knime.lychi;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import org.knime.base.data.append.column.AppendedColumnRow;
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataRow;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.LongValue;
+import org.knime.core.data.container.CloseableRowIterator;
+import org.knime.core.data.def.DefaultRow;
+import org.knime.core.data.def.LongCell;
+import org.knime.core.node.BufferedDataContainer;
+import org.knime.core.node.BufferedDataTable;
+import org.knime.core.node.ExecutionContext;
+import org.knime.core.util.ThreadUtils;
+import org.knime.core.util.UniqueNameGenerator;
+
+/**
+ * Sorts the resolved rows by their LyChI key with an external merge sort.
+ * Finished rows are collected into runs which are sorted and spilled to
+ * temporary tables by a background thread while the workers are still
+ * computing; closing the output merges the runs into the final container. One
+ * run is filled while the previous one is spilled, pushing only blocks if both
+ * are full. Rows with a missing key are sorted last, rows with equal keys keep
+ * their input order: each row is pushed with its index in the input table,
+ * which is kept in an extra column of the runs and breaks ties. The order does
+ * therefore not depend on which partition finished a row first. One instance
+ * may be shared by the workers of several partitions.
+ * <p>
+ * At most {@link #MAX_OPEN_RUNS} runs are read at once. If there are more, they
+ * are first merged in groups into fewer, longer runs.
+ *
+ * @author Vishal Siramshetty (siramshettyv2@nih.gov)
+ */
+public class LychiResolverSortedOutput {
+
+	/** Maximum number of rows in one run. */
+	private static final int MAX_RUN_ROWS = 100000;
+
+	/** Maximum number of runs merged at once, the default of KNIME's table sorter. */
+	static final int MAX_OPEN_RUNS = 40;
+
+	private final ExecutionContext exec;
+	private final BufferedDataContainer container;
+	private final long maxRunBytes;
+
+	/** Spec of the runs, the output columns and the input row index. */
+	private final DataTableSpec runSpec;
+	private final int indexColumn;
+
+	private final Comparator<IndexedRow> comparator;
+
+	/** Runs in order of arrival, completed once they are spilled. */
+	private final List<CompletableFuture<BufferedDataTable>> runs = new ArrayList<CompletableFuture<BufferedDataTable>>();
+
+	/** Allows one run to be spilled while the next one is filled. */
+	private final Semaphore spillPermits = new Semaphore(1);
+
+	private final ExecutorService spiller = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "LyChI sorted run spiller");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private List<IndexedRow> buffer = new ArrayList<IndexedRow>();
+	private long bufferBytes;
+
+	/**
+	 * @param exec        context used to create the temporary run tables
+	 * @param container   the container receiving the sorted rows
+	 * @param keyIndex    index of the LyChI column to sort by
+	 * @param maxRunBytes estimated size of a run before it is spilled
+	 */
+	public LychiResolverSortedOutput(final ExecutionContext exec, final BufferedDataContainer container,
+			final int keyIndex, final long maxRunBytes) {
+		this.exec = exec;
+		this.container = container;
+		this.maxRunBytes = maxRunBytes;
+		DataTableSpec spec = container.getTableSpec();
+		this.runSpec = new DataTableSpec(spec,
+				new DataTableSpec(new UniqueNameGenerator(spec).newColumn("Row index", LongCell.TYPE)));
+		this.indexColumn = spec.getNumColumns();
+		this.comparator = (r1, r2) -> {
+			int cmp = compareKeys(r1.row.getCell(keyIndex), r2.row.getCell(keyIndex));
+			return cmp != 0 ? cmp : Long.compare(r1.index, r2.index);
+		};
+	}
+
+	private static int compareKeys(final DataCell c1, final DataCell c2) {
+		if (c1.isMissing() || c2.isMissing()) {
+			return Boolean.compare(c1.isMissing(), c2.isMissing());
+		}
+		return c1.toString().compareTo(c2.toString());
+	}
+
+	/**
+	 * Adds a resolved row.
+	 *
+	 * @param row
+	 * @param index index of the row in the input table
+	 * @param bytes estimated size of the row
+	 * @throws InterruptedException
+	 */
+	public void push(final DataRow row, final long index, final long bytes) throws InterruptedException {
+		List<IndexedRow> full = null;
+		CompletableFuture<BufferedDataTable> run = null;
+		synchronized (this) {
+			buffer.add(new IndexedRow(row, index));
+			bufferBytes += bytes;
+			if (buffer.size() >= MAX_RUN_ROWS || bufferBytes >= maxRunBytes) {
+				full = buffer;
+				run = new CompletableFuture<BufferedDataTable>();
+				runs.add(run);
+				buffer = new ArrayList<IndexedRow>();
+				bufferBytes = 0;
+			}
+		}
+		if (full != null) {
+			spillRun(full, run);
+		}
+	}
+
+	/**
+	 * Hands a full run to the spill thread, waiting while the previous run is
+	 * still being spilled. The output is not locked meanwhile, so other workers
+	 * keep filling the next run.
+	 */
+	private void spillRun(final List<IndexedRow> rows, final CompletableFuture<BufferedDataTable> run)
+			throws InterruptedException {
+		spillPermits.acquire();
+		try {
+			spiller.execute(ThreadUtils.runnableWithContext(() -> {
+				try {
+					run.complete(writeRun(rows));
+				} catch (Throwable t) {
+					run.completeExceptionally(t);
+				} finally {
+					spillPermits.release();
+				}
+			}));
+		} catch (RuntimeException re) {
+			spillPermits.release();
+			run.completeExceptionally(re);
+		}
+	}
+
+	/**
+	 * Sorts the rows and writes them with their input index to a temporary table.
+	 */
+	private BufferedDataTable writeRun(final List<IndexedRow> rows) {
+		rows.sort(comparator);
+		BufferedDataContainer run = createRunContainer();
+		for (IndexedRow row : rows) {
+			run.addRowToTable(new AppendedColumnRow(row.row, new LongCell(row.index)));
+		}
+		run.close();
+		return run.getTable();
+	}
+
+	private BufferedDataContainer createRunContainer() {
+		// runs are only read once by the merge, so they go to disk right away
+		return exec.createDataContainer(runSpec, false, 0);
+	}
+
+	/**
+	 * Waits for the spilled runs, merges them into the output container and
+	 * closes it.
+	 */
+	public synchronized void close() throws InterruptedException {
+		if (!buffer.isEmpty()) {
+			runs.add(CompletableFuture.completedFuture(writeRun(buffer)));
+			buffer = new ArrayList<IndexedRow>();
+			bufferBytes = 0;
+		}
+
+		List<BufferedDataTable> tables = new ArrayList<BufferedDataTable>(runs.size());
+		try {
+			for (CompletableFuture<BufferedDataTable> run : runs) {
+				tables.add(run.get());
+			}
+		} catch (ExecutionException ee) {
+			throw new IllegalStateException("Writing a sorted run failed: " + ee.getCause().getMessage(),
+					ee.getCause());
+		} finally {
+			spiller.shutdown();
+		}
+		runs.clear();
+
+		// intermediate passes until the remaining runs can be opened at once
+		while (tables.size() > MAX_OPEN_RUNS) {
+			List<BufferedDataTable> merged = new ArrayList<BufferedDataTable>();
+			for (int from = 0; from < tables.size(); from += MAX_OPEN_RUNS) {
+				List<BufferedDataTable> group = tables.subList(from, Math.min(tables.size(), from + MAX_OPEN_RUNS));
+				BufferedDataContainer run = createRunContainer();
+				merge(group, run, false);
+				run.close();
+				merged.add(run.getTable());
+			}
+			tables = merged;
+		}
+
+		merge(tables, container, true);
+		container.close();
+	}
+
+	/**
+	 * Merges sorted runs into a container and clears the runs afterwards. Ties
+	 * are broken by the input index, so the result does not depend on the order
+	 * of the runs.
+	 *
+	 * @param tables     at most {@link #MAX_OPEN_RUNS} runs
+	 * @param target
+	 * @param dropIndex  true to write the rows without the index column
+	 */
+	private void merge(final List<BufferedDataTable> tables, final BufferedDataContainer target,
+			final boolean dropIndex) {
+		PriorityQueue<RunCursor> queue = new PriorityQueue<RunCursor>(Math.max(1, tables.size()),
+				(c1, c2) -> comparator.compare(c1.current, c2.current));
+		for (BufferedDataTable table : tables) {
+			RunCursor cursor = new RunCursor(table.iterator(), indexColumn);
+			if (cursor.advance()) {
+				queue.add(cursor);
+			}
+		}
+
+		while (!queue.isEmpty()) {
+			RunCursor cursor = queue.poll();
+			DataRow row = cursor.current.row;
+			target.addRowToTable(dropIndex ? dropLastCell(row) : row);
+			if (cursor.advance()) {
+				queue.add(cursor);
+			}
+		}
+
+		for (BufferedDataTable table : tables) {
+			exec.clearTable(table);
+		}
+	}
+
+	private static DataRow dropLastCell(final DataRow row) {
+		DataCell[] cells = new DataCell[row.getNumCells() - 1];
+		for (int i = 0; i < cells.length; i++) {
+			cells[i] = row.getCell(i);
+		}
+		return new DefaultRow(row.getKey(), cells);
+	}
+
+	/**
+	 * Stops the spill thread. Used if the execution fails before the output is
+	 * closed, calling it after {@link #close()} has no effect.
+	 */
+	public void dispose() {
+		spiller.shutdownNow();
+	}
+
+	/**
+	 * A row with its index in the input table.
+	 */
+	private static final class IndexedRow {
+
+		private final DataRow row;
+		private final long index;
+
+		private IndexedRow(final DataRow row, final long index) {
+			this.row = row;
+			this.index = index;
+		}
+	}
+
+	/**
+	 * Current position in one sorted run.
+	 */
+	private static final class RunCursor {
+
+		private final CloseableRowIterator iterator;
+		private final int indexColumn;
+		private IndexedRow current;
+
+		private RunCursor(final CloseableRowIterator iterator, final int indexColumn) {
+			this.iterator = iterator;
+			this.indexColumn = indexColumn;
+		}
+
+		private boolean advance() {
+			if (iterator.hasNext()) {
+				DataRow row = iterator.next();
+				current = new IndexedRow(row, ((LongValue) row.getCell(indexColumn)).getLongValue());
+				return true;
+			}
+			iterator.close();
+			current = null;
+			return false;
+		}
+	}
+
+}
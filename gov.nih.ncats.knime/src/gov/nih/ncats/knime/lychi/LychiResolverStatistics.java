@@ -0,0 +1,231 @@
+package gov.nih.ncats.knime.lychi;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Performance statistics of one node execution: timing aggregates per
+ * processing stage and the slowest rows. The statistics are saved with the
+ * node, so they stay available after a workflow is reopened, and shown in the
+ * node view. The stage timings are recorded without locking, so that the
+ * workers do not contend for the statistics.
+ *
+ * @author Vishal Siramshetty (siramshettyv2@nih.gov)
+ */
+public class LychiResolverStatistics {
+
+	/** Stage index for parsing the input structure. */
+	public static final int STAGE_PARSE = 0;
+
+	/** Stage index for the LyChI standardization. */
+	public static final int STAGE_STANDARDIZE = 1;
+
+	/** Stage index for the hash key generation. */
+	public static final int STAGE_HASH = 2;
+
+	/** Names of the stages, in index order. */
+	public static final String[] STAGE_NAMES = { "parse", "standardize", "hash" };
+
+	/** Number of slowest rows that are kept. */
+	public static final int MAX_SLOWEST_ROWS = 20;
+
+	private final LongAdder[] counts = new LongAdder[STAGE_NAMES.length];
+	private final LongAdder[] totalNanos = new LongAdder[STAGE_NAMES.length];
+	private final LongAccumulator[] maxNanos = new LongAccumulator[STAGE_NAMES.length];
+
+	/** Min-heap on the row time, the fastest of the slowest rows is on top. */
+	private final PriorityQueue<SlowRow> slowestRows = new PriorityQueue<SlowRow>();
+
+	/**
+	 * Time a row must exceed to enter the slowest rows, so that most rows are
+	 * rejected without taking the lock.
+	 */
+	private volatile long slowRowThreshold = -1;
+
+	/**
+	 * Creates empty statistics.
+	 */
+	public LychiResolverStatistics() {
+		for (int i = 0; i < STAGE_NAMES.length; i++) {
+			counts[i] = new LongAdder();
+			totalNanos[i] = new LongAdder();
+			maxNanos[i] = new LongAccumulator(Math::max, 0);
+		}
+	}
+
+	/**
+	 * Adds the time spent in one stage for one structure.
+	 *
+	 * @param stage one of the STAGE_ constants
+	 * @param nanos
+	 */
+	public void addStage(final int stage, final long nanos) {
+		counts[stage].increment();
+		totalNanos[stage].add(nanos);
+		maxNanos[stage].accumulate(nanos);
+	}
+
+	/**
+	 * Adds the total time spent for one row, keeping it if it is among the slowest.
+	 *
+	 * @param rowKey
+	 * @param nanos
+	 */
+	public void addRow(final String rowKey, final long nanos) {
+		if (nanos <= slowRowThreshold) {
+			return;
+		}
+		synchronized (slowestRows) {
+			if (slowestRows.size() < MAX_SLOWEST_ROWS) {
+				slowestRows.add(new SlowRow(rowKey, nanos));
+			} else if (nanos > slowestRows.peek().nanos) {
+				slowestRows.poll();
+				slowestRows.add(new SlowRow(rowKey, nanos));
+			}
+			if (slowestRows.size() == MAX_SLOWEST_ROWS) {
+				slowRowThreshold = slowestRows.peek().nanos;
+			}
+		}
+	}
+
+	/**
+	 * @param stage
+	 * @return number of structures that passed the stage
+	 */
+	public long getCount(final int stage) {
+		return counts[stage].sum();
+	}
+
+	/**
+	 * @param stage
+	 * @return total time spent in the stage in nanoseconds
+	 */
+	public long getTotalNanos(final int stage) {
+		return totalNanos[stage].sum();
+	}
+
+	/**
+	 * @param stage
+	 * @return longest time spent in the stage for one structure in nanoseconds
+	 */
+	public long getMaxNanos(final int stage) {
+		return maxNanos[stage].get();
+	}
+
+	/**
+	 * @return the slowest rows, slowest first
+	 */
+	public List<SlowRow> getSlowestRows() {
+		List<SlowRow> rows;
+		synchronized (slowestRows) {
+			rows = new ArrayList<SlowRow>(slowestRows);
+		}
+		Collections.sort(rows, Collections.reverseOrder());
+		return rows;
+	}
+
+	/**
+	 * @return a one line summary of the stage timings
+	 */
+	public String getSummary() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < STAGE_NAMES.length; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			long count = getCount(i);
+			double avgMillis = count == 0 ? 0 : getTotalNanos(i) / 1e6 / count;
+			sb.append(STAGE_NAMES[i]).append(": ").append(count).append(" x ")
+					.append(String.format("%.3f", avgMillis)).append(" ms (max ")
+					.append(String.format("%.3f", getMaxNanos(i) / 1e6)).append(" ms)");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Writes the statistics in a compact binary form.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void save(final DataOutput out) throws IOException {
+		out.writeInt(STAGE_NAMES.length);
+		for (int i = 0; i < STAGE_NAMES.length; i++) {
+			out.writeLong(getCount(i));
+			out.writeLong(getTotalNanos(i));
+			out.writeLong(getMaxNanos(i));
+		}
+		List<SlowRow> rows = getSlowestRows();
+		out.writeInt(rows.size());
+		for (SlowRow row : rows) {
+			out.writeUTF(row.rowKey);
+			out.writeLong(row.nanos);
+		}
+	}
+
+	/**
+	 * Reads statistics written by {@link #save(DataOutput)}.
+	 *
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static LychiResolverStatistics load(final DataInput in) throws IOException {
+		LychiResolverStatistics stats = new LychiResolverStatistics();
+		int stages = in.readInt();
+		if (stages != STAGE_NAMES.length) {
+			throw new IOException("Unexpected number of stages in statistics: " + stages);
+		}
+		for (int i = 0; i < stages; i++) {
+			stats.counts[i].add(in.readLong());
+			stats.totalNanos[i].add(in.readLong());
+			stats.maxNanos[i].accumulate(in.readLong());
+		}
+		int rows = in.readInt();
+		for (int i = 0; i < rows; i++) {
+			stats.addRow(in.readUTF(), in.readLong());
+		}
+		return stats;
+	}
+
+	/**
+	 * A row that took long to resolve.
+	 */
+	public static final class SlowRow implements Comparable<SlowRow> {
+
+		private final String rowKey;
+		private final long nanos;
+
+		private SlowRow(final String rowKey, final long nanos) {
+			this.rowKey = rowKey;
+			this.nanos = nanos;
+		}
+
+		/**
+		 * @return the row key
+		 */
+		public String getRowKey() {
+			return rowKey;
+		}
+
+		/**
+		 * @return time spent for the row in nanoseconds
+		 */
+		public long getNanos() {
+			return nanos;
+		}
+
+		@Override
+		public int compareTo(final SlowRow o) {
+			return Long.compare(nanos, o.nanos);
+		}
+	}
+
+}